@@ -0,0 +1,52 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Group.broadcast() to groups of different sizes, with and without a long history (which a
+ * broadcast shouldn't depend on).
+ * Every member has a one-slot DROP_OLDEST outbound queue, so each offer replaces the
+ * previous frame and the queues stay the same size however long the benchmark runs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    private static final String LINE = "NEW_MESSAGE 1 12345|someone|2026-01-01 12:00:00|A typical subject line";
+
+    @Param({"10", "1000", "10000"})
+    public int groupSize;
+
+    @Param({"0", "100000"})
+    public int historySize;
+
+    private Group group;
+
+    @Setup
+    public void setUp() {
+        var server = Fixtures.serverWithHistory(historySize);
+        group = server.getDefaultGroup();
+        for (int i = 0; i < groupSize; i++) {
+            group.addMember(Fixtures.member(server));
+        }
+    }
+
+    @Benchmark
+    public void broadcast() {
+        group.broadcast(LINE, null);
+    }
+}
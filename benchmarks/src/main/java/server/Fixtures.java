@@ -0,0 +1,36 @@
+package server;
+
+import java.net.InetSocketAddress;
+
+// Shared setup for the benchmarks.
+final class Fixtures {
+    private Fixtures() {
+    }
+
+    // A client with no socket whose outbound queue keeps only the newest frame.
+    static ClientHandler member(Server server) {
+        var queue = new OutboundQueue(1, OutboundQueue.OverflowPolicy.DROP_OLDEST, () -> {}, () -> {});
+        return new ClientHandler(server, queue, new InetSocketAddress(0));
+    }
+
+    // A client with no socket for sending commands. Replies don't count against the queue's
+    // capacity, so they are thrown away as soon as they are queued.
+    static ClientHandler client(Server server) {
+        var queue = new OutboundQueue[1];
+        queue[0] = new OutboundQueue(1, OutboundQueue.OverflowPolicy.DROP_OLDEST, () -> {
+            queue[0].drain();
+            queue[0].finishDrain();
+        }, () -> {});
+        return new ClientHandler(server, queue[0], new InetSocketAddress(0));
+    }
+
+    // A server whose default group has historySize messages.
+    static Server serverWithHistory(int historySize) {
+        var server = new Server(0);
+        Group group = server.getDefaultGroup();
+        for (int i = 0; i < historySize; i++) {
+            server.postMessage(group, new Message("user" + (i % 100), "Subject " + i, "Content of message " + i));
+        }
+        return server;
+    }
+}
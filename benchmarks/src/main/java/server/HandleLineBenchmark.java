@@ -0,0 +1,76 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * ClientHandler.handleLine() from received bytes to queued replies, for a logged in client
+ * in a group of groupSize members. MESSAGE includes storing the post and the NEW_MESSAGE
+ * fan-out; the server is rebuilt every iteration so the stored history doesn't pile up.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandleLineBenchmark {
+    private static final byte[] PING = bytes("PING");
+    private static final byte[] MESSAGE = bytes("MESSAGE 1 A typical subject line|Some message content that is about this long");
+    private static final byte[] GET_MESSAGE = bytes("GET_MESSAGE 1");
+    private static final byte[] UNKNOWN = bytes("BOGUS command");
+
+    @Param({"1", "1000"})
+    public int groupSize;
+
+    private ClientHandler client;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        Log.configure(Log.Level.WARN, 1);
+        var server = new Server(0);
+        client = Fixtures.client(server);
+        client.handleLine("LOGIN bench"); // Also joins group 1
+        client.handleLine(new String(MESSAGE, StandardCharsets.UTF_8)); // Message 1 for GET_MESSAGE
+        Group group = server.getDefaultGroup();
+        for (int i = 1; i < groupSize; i++) {
+            group.addMember(Fixtures.member(server));
+        }
+    }
+
+    @Benchmark
+    public boolean ping() {
+        return client.handleLine(PING, PING.length);
+    }
+
+    @Benchmark
+    public boolean message() {
+        return client.handleLine(MESSAGE, MESSAGE.length);
+    }
+
+    @Benchmark
+    public boolean getMessage() {
+        return client.handleLine(GET_MESSAGE, GET_MESSAGE.length);
+    }
+
+    @Benchmark
+    public boolean unknownCommand() {
+        return client.handleLine(UNKNOWN, UNKNOWN.length);
+    }
+
+    private static byte[] bytes(String line) {
+        return line.getBytes(StandardCharsets.UTF_8);
+    }
+}
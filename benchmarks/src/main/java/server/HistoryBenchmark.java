@@ -0,0 +1,77 @@
+package server;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Message history paths with different amounts of history already stored and members in the
+ * group: Group.addMessage(), Server.post() (store and broadcast to every other member),
+ * Group.getLastMessages() (the JOIN replay) and Server.getMessageById().
+ * The server is rebuilt for every iteration so the posts don't keep growing one history.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmark {
+    @Param({"0", "1000", "100000"})
+    public int historySize;
+
+    @Param({"1", "1000"})
+    public int groupSize;
+
+    private Server server;
+    private Group group;
+    private ClientHandler sender;
+    private int firstId;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        server = Fixtures.serverWithHistory(historySize);
+        group = server.getDefaultGroup();
+        for (int i = 0; i < groupSize; i++) {
+            ClientHandler member = Fixtures.member(server);
+            member.username = "member" + i;
+            group.addMember(member);
+        }
+        sender = group.getMembers().get(0);
+        List<Message> messages = group.getMessages();
+        firstId = messages.isEmpty() ? 0 : messages.get(0).getId();
+    }
+
+    @Benchmark
+    public void addMessage() {
+        group.addMessage(new Message("sender", "Subject", "Content"));
+    }
+
+    @Benchmark
+    public Message post() {
+        return server.post(group, sender, "Subject", "Content");
+    }
+
+    @Benchmark
+    public List<Message> getLastMessages() {
+        return group.getLastMessages(2);
+    }
+
+    @Benchmark
+    public Message getMessageById() {
+        int offset = historySize == 0 ? 0 : ThreadLocalRandom.current().nextInt(historySize);
+        return server.getMessageById(firstId + offset);
+    }
+}
@@ -0,0 +1,57 @@
+package server;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Server.getGroup() by id and by name with different numbers of groups.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+    @Param({"5", "1000", "100000"})
+    public int groupCount;
+
+    private Server server;
+    private String[] ids;
+    private String[] names;
+
+    @Setup
+    public void setUp() {
+        server = new Server(0);
+        for (int i = server.getGroupCount(); i < groupCount; i++) {
+            server.createGroup("Bench " + i);
+        }
+        ids = new String[server.getGroupCount()];
+        names = new String[ids.length];
+        int i = 0;
+        for (Group group : server.getGroups()) {
+            ids[i] = String.valueOf(group.getId());
+            names[i] = group.getName().toUpperCase();
+            i++;
+        }
+    }
+
+    @Benchmark
+    public Group getGroupById() {
+        return server.getGroup(ids[ThreadLocalRandom.current().nextInt(ids.length)]);
+    }
+
+    @Benchmark
+    public Group getGroupByName() {
+        return server.getGroup(names[ThreadLocalRandom.current().nextInt(names.length)]);
+    }
+}
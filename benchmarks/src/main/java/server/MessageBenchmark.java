@@ -0,0 +1,57 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Creating a Message (which renders its summary) and reading the summary back, for short and
+// long subjects and contents.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+    @Param({"22", "200"})
+    public int subjectLength;
+
+    @Param({"20", "2000"})
+    public int contentLength;
+
+    private String subject;
+    private String content;
+    private Message message;
+
+    @Setup
+    public void setUp() {
+        subject = "s".repeat(subjectLength);
+        content = "c".repeat(contentLength);
+        message = new Message("someone", subject, content);
+    }
+
+    @Benchmark
+    public Message create() {
+        return new Message("someone", subject, content);
+    }
+
+    @Benchmark
+    public String toSummaryString() {
+        return message.toSummaryString();
+    }
+
+    @Benchmark
+    public ByteBuffer summaryFrame() {
+        return message.summaryFrame("NEW_MESSAGE 1 ");
+    }
+}
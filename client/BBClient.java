@@ -1,13 +1,22 @@
 import java.io.*;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 // the main bullet board client (BBClient)
 public final class BBClient {
 
     private Socket clientSocket = null;
-    private BufferedReader serverReader = null;
+    private InputStream serverIn = null;
+    private OutputStream serverOut = null;
     private PrintWriter serverWriter = null;
     private boolean connected = false;
+    private boolean binary = false; //true after %binary, commands are then sent as binary frames
+    private PendingRequests pending = null;
+    private ServerListener listener = null;
 
     //constructor
     public static void main(String[] argv) {
@@ -38,7 +47,7 @@ public final class BBClient {
                 }
 
                 if (input.equals("%exit")) {
-                    if (connected) send("QUIT");
+                    if (connected) send(ClientProtocol.quit());
                     disconnect();
                     break;
                 }
@@ -54,17 +63,20 @@ public final class BBClient {
                 else if (input.startsWith("%post")) {
                     handlePost(input);
                 }
+                else if (input.startsWith("%messages")) {
+                    handleMessages(input);
+                }
                 else if (input.startsWith("%message")) {
                     handleMessageRetrieve(input);
                 }
                 else if (input.equals("%leave")) {
-                    send("LEAVE 1"); // Leaving default group #1 (assignment part 1)
+                    send(ClientProtocol.leave(ClientProtocol.DEFAULT_GROUP)); // Leaving default group #1 (assignment part 1)
                 }
 
                 
                 //all of the commands for the groups part
                 else if (input.equals("%groups")) {
-                    send("GROUPS");
+                    send(ClientProtocol.groups());
                 }
                 else if (input.startsWith("%groupjoin")) {
                     handleGroupJoin(input);
@@ -81,6 +93,21 @@ public final class BBClient {
                 else if (input.startsWith("%groupmessage")) {
                     handleGroupMessage(input);
                 }
+                else if (input.startsWith("%history")) {
+                    handleHistory(input);
+                }
+                else if (input.startsWith("%search")) {
+                    handleSearch(input);
+                }
+                else if (input.startsWith("%fetch")) {
+                    handleFetch(input);
+                }
+                else if (input.equals("%binary")) {
+                    handleBinary();
+                }
+                else if (input.equals("%compress")) {
+                    handleCompress();
+                }
                 else {
                     System.out.println("Unknown command.");
                 }
@@ -105,10 +132,16 @@ public final class BBClient {
         System.out.println("Part 2:");
         System.out.println("  %groups");
         System.out.println("  %groupjoin <group_id>");
-        System.out.println("  %groupusers <group_id>");
+        System.out.println("  %groupusers <group_id> [<offset> <limit>]");
         System.out.println("  %grouppost <group_id> <subject> | <body>");
         System.out.println("  %groupleave <group_id>");
         System.out.println("  %groupmessage <id>");
+        System.out.println("  %history <group_id> [<before_id> [<limit>]]");
+        System.out.println("  %messages <id>,<id>,...");
+        System.out.println("  %search <group_id> <words>");
+        System.out.println("  %fetch <id> [<id> ...]   (or <first>-<last>)");
+        System.out.println("  %binary   (before %join: use the binary protocol)");
+        System.out.println("  %compress (deflate what the server sends)");
         System.out.println();
         System.out.println("  %exit");
     }
@@ -133,19 +166,23 @@ public final class BBClient {
             // creating the new client TCP socket using the ip address and port number that were inputted by the user
             clientSocket = new Socket(ip, port);
 
-            //creating a server reader to read the data coming in from the server using clientSocket
-            serverReader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+            //the stream the listener reads the data coming in from the server from (lines, or frames later on)
+            serverIn = new BufferedInputStream(clientSocket.getInputStream());
 
             // creating a server writer to send data tot the server using clienSocjet.getOutputStream
-            serverWriter = new PrintWriter(clientSocket.getOutputStream(), true);
+            serverOut = clientSocket.getOutputStream();
+            serverWriter = new PrintWriter(serverOut, true);
             
             // once it is connected the connected status will become true
             connected = true;
+            binary = false;
 
             System.out.println("Connected to " + ip + ":" + port);
 
             //creating a thread to listen for any messages that come from the server and starting
-            Thread t = new Thread(new ServerListener(serverReader, clientSocket));
+            pending = new PendingRequests();
+            listener = new ServerListener(serverIn, clientSocket, pending);
+            Thread t = new Thread(listener);
             t.start();
 
         } catch (Exception e) {
@@ -158,15 +195,61 @@ public final class BBClient {
         try {
             connected = false;
             if (serverWriter != null) serverWriter.close();
-            if (serverReader != null) serverReader.close();
+            if (serverIn != null) serverIn.close();
             if (clientSocket != null) clientSocket.close();
             System.out.println("Disconnected.");
         } catch (IOException ignored) {}
     }
 
-    //function to send the client text message string 
+    //function to send the client text message string (as a TEXT frame in binary mode)
     private void send(String msg) {
-        if (serverWriter != null) serverWriter.println(msg);
+        if (binary) {
+            sendFrame(BinaryFrames.text(msg));
+        } else if (serverWriter != null) {
+            serverWriter.println(msg);
+        }
+    }
+
+    //function to send one binary frame
+    private void sendFrame(byte[] frame) {
+        try {
+            serverOut.write(frame);
+            serverOut.flush();
+        } catch (IOException e) {
+            System.out.println("ERROR sending: " + e.getMessage());
+        }
+    }
+
+    //the number of a tag from PendingRequests ("#17" -> 17), binary frames carry it as a number
+    private static int tagNumber(String tag) {
+        return Integer.parseInt(tag.substring(1));
+    }
+
+    //the id as a number for a binary frame, or -1 if it isn't one (a group name, say) and the
+    //command has to go as text
+    private static int binaryId(String id) {
+        try {
+            int value = Integer.parseInt(id);
+            return value >= 0 ? value : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    //send a command with a tag and get a future for its reply, without waiting for it.
+    //many of these can be in flight at once, so bulk operations don't pay a round trip per command
+    private CompletableFuture<String> request(String msg) {
+        return request(msg, tag -> {});
+    }
+
+    //same, and give the tag to beforeSend first (the listener has to know it to spot the OK of BINARY
+    //or COMPRESS)
+    private CompletableFuture<String> request(String msg, Consumer<String> beforeSend) {
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        String tag = pending.register(reply);
+        beforeSend.accept(tag);
+        send(tag + " " + msg);
+        return reply;
     }
 
     //part 1
@@ -182,7 +265,7 @@ public final class BBClient {
                 return;
             }
             //sending the username informatio to the server
-            send("LOGIN " + username);
+            send(ClientProtocol.login(username));
         } catch (IOException e) {
             System.out.println("Error reading username.");
         }
@@ -205,7 +288,27 @@ public final class BBClient {
         String body = parts[1].trim();
 
         // posts the message to goup 1
-        send("MESSAGE 1 " + subject + "|" + body);
+        post(ClientProtocol.DEFAULT_GROUP, subject, body);
+    }
+
+    //sends a post, with its own opcode in binary mode (then '|' and such need no care)
+    private void post(String groupId, String subject, String body) {
+        int group = binaryId(groupId);
+        if (binary && group >= 0) {
+            sendFrame(BinaryFrames.post(0, group, subject, body));
+        } else {
+            send(ClientProtocol.post(groupId, subject, body));
+        }
+    }
+
+    //asks for one message body, with its own opcode in binary mode
+    private void getMessage(String messageId) {
+        int id = binaryId(messageId);
+        if (binary && id >= 0) {
+            sendFrame(BinaryFrames.getMessage(0, id));
+        } else {
+            send(ClientProtocol.getMessage(messageId));
+        }
     }
 
     private void handleMessageRetrieve(String cmd) {
@@ -216,7 +319,7 @@ public final class BBClient {
             return;
         }
         //sending the request for the specific message id
-        send("GET_MESSAGE " + p[1]);
+        getMessage(p[1]);
     }
 
     //part 3
@@ -230,19 +333,19 @@ public final class BBClient {
             return;
         }
         //seinding the join command and the group id to the server
-        send("JOIN " + p[1]);
+        send(ClientProtocol.join(p[1]));
     }
 
     //function to handle when the user requests the list of users in a specfific group
     private void handleGroupUsers(String cmd) {
         //making sure the input is in the correct format and extracting it
         String[] p = cmd.split("\\s+");
-        if (p.length != 2) {
-            System.out.println("Usage: %groupusers <group_id>");
+        if (p.length != 2 && p.length != 4) {
+            System.out.println("Usage: %groupusers <group_id> [<offset> <limit>]");
             return;
         }
-        //sending the users group id to the server
-        send("USERS " + p[1]);
+        //sending the users group id to the server (with a page of a big group if asked for)
+        send(p.length == 4 ? ClientProtocol.users(p[1], p[2], p[3]) : ClientProtocol.users(p[1]));
     }
 
     //function to handle when the user wants to leave a sepcific roup
@@ -254,7 +357,7 @@ public final class BBClient {
             return;
         }
         //sending the leave group id to the server
-        send("LEAVE " + p[1]);
+        send(ClientProtocol.leave(p[1]));
     }
 
     //function to handle when the user posts a message to a specific group
@@ -291,7 +394,7 @@ public final class BBClient {
         String body = parts[1].trim();
 
         //sending the all of the needed information for the post to the server
-        send("MESSAGE " + groupId + " " + subject + "|" + body);
+        post(groupId, subject, body);
     }
 
     //function to handle when the user asks to see a specific mesage using the message id
@@ -303,7 +406,121 @@ public final class BBClient {
             return;
         }
         //sending the get message command and message id to the server
-        send("GET_MESSAGE " + p[1]);
+        getMessage(p[1]);
     }
-}
 
+    //function to page back through a group's messages: %history <group_id> [<before_id> [<limit>]]
+    private void handleHistory(String cmd) {
+        String[] p = cmd.split("\\s+");
+        if (p.length < 2 || p.length > 4) {
+            System.out.println("Usage: %history <group_id> [<before_id> [<limit>]]");
+            return;
+        }
+        String beforeId = p.length > 2 ? p[2] : "0";
+        String limit = p.length > 3 ? p[3] : "20";
+        send(ClientProtocol.history(p[1], beforeId, limit));
+    }
+
+    //function to find messages in a group by the words in them: %search <group_id> <words>
+    private void handleSearch(String cmd) {
+        String[] p = cmd.split("\\s+", 3);
+        if (p.length != 3) {
+            System.out.println("Usage: %search <group_id> <words>");
+            return;
+        }
+        send(ClientProtocol.search(p[1], p[2]));
+    }
+
+    //function to get the bodies of several messages with one command
+    private void handleMessages(String cmd) {
+        String[] p = cmd.split("\\s+", 2);
+        if (p.length != 2) {
+            System.out.println("Usage: %messages <id>,<id>,...");
+            return;
+        }
+        String ids = p[1].replaceAll("\\s+", "");
+        if (binary) {
+            try {
+                String[] list = ids.split(",");
+                int[] numbers = new int[list.length];
+                for (int i = 0; i < list.length; i++) numbers[i] = Integer.parseInt(list[i]);
+                sendFrame(BinaryFrames.getMessages(0, numbers));
+                return;
+            } catch (NumberFormatException e) {
+                //not all numbers, let the server answer the text command
+            }
+        }
+        send(ClientProtocol.getMessages(ids));
+    }
+
+    //function to switch to the binary protocol. the server only allows it before logging in, and the
+    //listener switches to reading frames as soon as it sees the OK BINARY with this request's tag
+    private void handleBinary() {
+        if (binary) {
+            System.out.println("Already using the binary protocol.");
+            return;
+        }
+        try {
+            String reply = request(ClientProtocol.binary(), listener::awaitBinary).get(10, TimeUnit.SECONDS);
+            if (reply.equals("OK BINARY")) {
+                binary = true;
+                System.out.println("Using the binary protocol.");
+            } else {
+                System.out.println("[SERVER] " + reply);
+            }
+        } catch (Exception e) {
+            System.out.println("ERROR: no reply to BINARY");
+        }
+    }
+
+    //function to turn on compression of everything the server sends. the listener starts
+    //inflating right after the OK COMPRESS line with this request's tag, so nothing else has to change here
+    private void handleCompress() {
+        try {
+            System.out.println("[SERVER] " + request(ClientProtocol.compress(), listener::awaitCompress).get(10, TimeUnit.SECONDS));
+        } catch (Exception e) {
+            System.out.println("ERROR: no reply to COMPRESS");
+        }
+    }
+
+    //function to get the content of many messages at once: all the GET_MESSAGE requests are sent
+    //first (pipelined) and then the replies are printed in order as they come back
+    private void handleFetch(String cmd) {
+        String[] p = cmd.split("\\s+");
+        if (p.length < 2) {
+            System.out.println("Usage: %fetch <id> [<id> ...]   (or <first>-<last>)");
+            return;
+        }
+        List<String> ids = new ArrayList<>();
+        try {
+            for (int i = 1; i < p.length; i++) {
+                String[] range = p[i].split("-", 2);
+                int first = Integer.parseInt(range[0]);
+                int last = range.length == 2 ? Integer.parseInt(range[1]) : first;
+                for (int id = first; id <= last; id++) ids.add(String.valueOf(id));
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Usage: %fetch <id> [<id> ...]   (or <first>-<last>)");
+            return;
+        }
+
+        List<CompletableFuture<String>> replies = new ArrayList<>();
+        for (String id : ids) {
+            if (binary) {
+                CompletableFuture<String> reply = new CompletableFuture<>();
+                sendFrame(BinaryFrames.getMessage(tagNumber(pending.register(reply)), Integer.parseInt(id)));
+                replies.add(reply);
+            } else {
+                replies.add(request(ClientProtocol.getMessage(id)));
+            }
+        }
+        serverWriter.flush();
+        for (int i = 0; i < ids.size(); i++) {
+            try {
+                System.out.println("[" + ids.get(i) + "] " + replies.get(i).get(10, TimeUnit.SECONDS));
+            } catch (Exception e) {
+                System.out.println("[" + ids.get(i) + "] ERROR: no reply");
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+// frames for the binary protocol mode (see PROTOCOL.md, "Binary Mode").
+// after BINARY gets OK BINARY both sides send frames instead of lines: a varint body length, one
+// opcode byte and then the fields (varint numbers, strings as a varint byte count + utf-8).
+// read() turns every frame from the server back into the text lines the client already handles,
+// so only the sending side has to know about opcodes.
+public final class BinaryFrames {
+
+    private BinaryFrames() {}
+
+    //client -> server
+    private static final int TEXT = 0x01;
+    private static final int MESSAGE = 0x02;
+    private static final int GET_MESSAGE = 0x03;
+    private static final int GET_MESSAGES = 0x04;
+
+    //server -> client (TEXT is shared)
+    private static final int OK_MESSAGE = 0x81;
+    private static final int CONTENT = 0x82;
+    private static final int MESSAGES = 0x83;
+    private static final int PONG = 0x84;
+    private static final int NEW_MESSAGE = 0x85;
+    private static final int FRAGMENT = 0x86;
+    private static final int LAST_FRAGMENT = 0x87;
+
+    private static final int MAX_FRAME_LENGTH = 1 << 20;
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    //any text command, same as sending the line in text mode
+    public static byte[] text(String line) {
+        Body body = new Body(TEXT);
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        body.write(bytes, 0, bytes.length);
+        return body.frame();
+    }
+
+    //tag 0 means untagged
+    public static byte[] post(int tag, int group, String subject, String content) {
+        Body body = new Body(MESSAGE);
+        body.varint(tag);
+        body.varint(group);
+        body.string(subject);
+        body.string(content);
+        return body.frame();
+    }
+
+    public static byte[] getMessage(int tag, int id) {
+        Body body = new Body(GET_MESSAGE);
+        body.varint(tag);
+        body.varint(id);
+        return body.frame();
+    }
+
+    public static byte[] getMessages(int tag, int[] ids) {
+        Body body = new Body(GET_MESSAGES);
+        body.varint(tag);
+        body.varint(ids.length);
+        for (int id : ids) body.varint(id);
+        return body.frame();
+    }
+
+    //one line in text mode, before the switch. reads byte by byte so nothing after the line is taken
+    //from the stream. returns null at the end of the stream
+    public static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            line.write(b);
+        }
+        if (b < 0 && line.size() == 0) return null;
+        String text = line.toString(StandardCharsets.UTF_8);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    //one frame from the server as the text lines it stands for (tagged "#<tag> " like text replies),
+    //or null at the end of the stream
+    public static String[] read(InputStream in) throws IOException {
+        byte[] body = readBody(in);
+        if (body == null) return null;
+        //a body too long for one frame comes in pieces, join them back
+        if ((body[0] & 0xff) == FRAGMENT) {
+            ByteArrayOutputStream joined = new ByteArrayOutputStream();
+            while ((body[0] & 0xff) == FRAGMENT) {
+                joined.write(body, 1, body.length - 1);
+                body = readBody(in);
+                if (body == null) return null;
+            }
+            if ((body[0] & 0xff) != LAST_FRAGMENT) throw new IOException("Unfinished fragments");
+            joined.write(body, 1, body.length - 1);
+            body = joined.toByteArray();
+        }
+
+        Reader frame = new Reader(body);
+        int opcode = frame.unsignedByte();
+        switch (opcode) {
+            case TEXT:
+                return new String[] {new String(body, 1, body.length - 1, StandardCharsets.UTF_8)};
+            case OK_MESSAGE: {
+                String tag = frame.tag();
+                return new String[] {tag + "OK MESSAGE " + frame.varint()};
+            }
+            case CONTENT: {
+                String tag = frame.tag();
+                frame.varint(); // the id, the text reply doesn't have it
+                return new String[] {tag + frame.string()};
+            }
+            case MESSAGES: {
+                String tag = frame.tag();
+                int count = (int) frame.varint();
+                String[] lines = new String[count + 1];
+                lines[0] = tag + "MESSAGES " + count;
+                for (int i = 1; i <= count; i++) {
+                    long id = frame.varint();
+                    lines[i] = frame.varint() != 0 ? tag + "CONTENT " + id + " " + frame.string() : tag + "NOT_FOUND " + id;
+                }
+                return lines;
+            }
+            case PONG:
+                return new String[] {frame.tag() + "PONG"};
+            case NEW_MESSAGE: {
+                long group = frame.varint();
+                long id = frame.varint();
+                String date = DATE_FORMAT.format(Instant.ofEpochMilli(frame.varint()));
+                String sender = frame.string();
+                String subject = frame.string();
+                return new String[] {"NEW_MESSAGE " + group + " " + id + "|" + sender + "|" + date + "|" + subject};
+            }
+            default:
+                throw new IOException("Unknown opcode " + opcode);
+        }
+    }
+
+    //one frame body (opcode and fields), or null at the end of the stream
+    private static byte[] readBody(InputStream in) throws IOException {
+        long length = readVarint(in);
+        if (length < 0) return null;
+        if (length == 0 || length > MAX_FRAME_LENGTH) throw new IOException("Bad frame length " + length);
+        byte[] body = in.readNBytes((int) length);
+        return body.length < length ? null : body;
+    }
+
+    //-1 at the end of the stream
+    private static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) return -1;
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Varint too long");
+    }
+
+    //frame body being built; frame() puts the length in front
+    private static final class Body extends ByteArrayOutputStream {
+        Body(int opcode) {
+            write(opcode);
+        }
+
+        void varint(long value) {
+            writeVarint(this, value);
+        }
+
+        void string(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            varint(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        byte[] frame() {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(count + 5);
+            writeVarint(frame, count);
+            frame.write(buf, 0, count);
+            return frame.toByteArray();
+        }
+
+        private static void writeVarint(ByteArrayOutputStream out, long value) {
+            while ((value & ~0x7fL) != 0) {
+                out.write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+    }
+
+    //reads the fields of one received frame body
+    private static final class Reader {
+        private final byte[] bytes;
+        private int position = 0;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        int unsignedByte() throws IOException {
+            if (position >= bytes.length) throw new IOException("Frame too short");
+            return bytes[position++] & 0xff;
+        }
+
+        long varint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = unsignedByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IOException("Varint too long");
+        }
+
+        String string() throws IOException {
+            int length = (int) varint();
+            if (length < 0 || length > bytes.length - position) throw new IOException("Frame too short");
+            String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        //the reply tag as the text protocol writes it ("#17 "), or "" for untagged
+        String tag() throws IOException {
+            long tag = varint();
+            return tag == 0 ? "" : "#" + tag + " ";
+        }
+    }
+}
@@ -0,0 +1,99 @@
+// the text lines the client sends to the server and the checks for what comes back.
+// used by BBClient (interactive) and LoadGenerator (headless) so both speak the same protocol.
+public final class ClientProtocol {
+
+    private ClientProtocol() {}
+
+    // the group every user is put in after LOGIN
+    public static final String DEFAULT_GROUP = "1";
+
+    //commands sent to the server
+    public static String login(String username) {
+        return "LOGIN " + username;
+    }
+
+    public static String join(String group) {
+        return "JOIN " + group;
+    }
+
+    public static String leave(String group) {
+        return "LEAVE " + group;
+    }
+
+    public static String post(String group, String subject, String body) {
+        return "MESSAGE " + group + " " + subject + "|" + body;
+    }
+
+    public static String getMessage(String id) {
+        return "GET_MESSAGE " + id;
+    }
+
+    // many message bodies in one round trip, ids separated by commas
+    public static String getMessages(String ids) {
+        return "GET_MESSAGES " + ids;
+    }
+
+    // up to limit summaries from before message beforeId ("0" = the newest ones)
+    public static String history(String group, String beforeId, String limit) {
+        return "HISTORY " + group + " " + beforeId + " " + limit;
+    }
+
+    // summaries of the newest messages in the group that have all of the words
+    public static String search(String group, String words) {
+        return "SEARCH " + group + " " + words;
+    }
+
+    public static String users(String group) {
+        return "USERS " + group;
+    }
+
+    // up to limit names of a big group, skipping the first offset (yourself not counted)
+    public static String users(String group, String offset, String limit) {
+        return "USERS " + group + " " + offset + " " + limit;
+    }
+
+    public static String groups() {
+        return "GROUPS";
+    }
+
+    public static String quit() {
+        return "QUIT";
+    }
+
+    // switch to binary frames (BinaryFrames), only before LOGIN
+    public static String binary() {
+        return "BINARY";
+    }
+
+    // the reply to the BINARY that was sent with this tag: everything after this line is a binary frame.
+    // only the tagged reply counts, since an untagged GET_MESSAGE reply could be a body saying OK BINARY
+    public static boolean isBinaryOk(String line, String tag) {
+        return tag != null && line.equals(tag + " OK BINARY");
+    }
+
+    // deflate everything the server sends from now on
+    public static String compress() {
+        return "COMPRESS";
+    }
+
+    // the reply to the COMPRESS that was sent with this tag: everything after this line is a zlib
+    // stream. only the tagged reply counts, for the same reason as isBinaryOk
+    public static boolean isCompressOk(String line, String tag) {
+        return tag != null && line.equals(tag + " OK COMPRESS");
+    }
+
+    //lines the server pushes on its own (not a reply to the last command)
+    public static boolean isBroadcast(String line) {
+        return line.startsWith("NEW_MESSAGE ") || line.startsWith("USER_JOINED ") || line.startsWith("USER_LEFT ")
+                || line.startsWith("USERS_DELTA ");
+    }
+
+    // NEW_MESSAGE <group_id> <id|sender|date|subject> -> the summary part, or null if it is not one
+    public static String[] newMessageSummary(String line) {
+        if (!line.startsWith("NEW_MESSAGE ")) return null;
+        int space = line.indexOf(' ', "NEW_MESSAGE ".length());
+        if (space < 0) return null;
+        String[] parts = line.substring(space + 1).split("\\|", 4);
+        return parts.length == 4 ? parts : null;
+    }
+}
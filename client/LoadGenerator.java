@@ -0,0 +1,360 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// headless load tool (no stdin, no printing of server lines) for capacity planning.
+// it opens N sessions against a server, logs each one in and then runs a random mix of commands
+// until the time is up. every command waits for its reply, so each session is a closed loop
+// (add --think to slow the sessions down). at the end it prints throughput and latency
+// percentiles per command, plus how long NEW_MESSAGE broadcasts took from post to arrival.
+//
+// with --binary every session switches to the binary protocol before LOGIN, and MESSAGE and
+// GET_MESSAGE go out with their own opcodes (the other commands as TEXT frames).
+//
+// usage: java LoadGenerator [--host=127.0.0.1] [--port=8000] [--sessions=50] [--duration=30]
+//                           [--warmup=5] [--groups=1] [--think=<ms>] [--binary]
+//                           [--mix=message:40,get_message:30,users:20,join:10]
+public final class LoadGenerator {
+
+    //the commands the mix can pick (LOGIN runs once per session, LEAVE when a join op leaves instead)
+    private static final String[] OPS = {"MESSAGE", "GET_MESSAGE", "USERS", "JOIN"};
+    private static final String SUBJECT_PREFIX = "lg-"; // subject carries the post time for broadcast latency
+    private static final String BINARY_TAG = "#binary"; // only the reply with this tag switches a session to frames
+
+    private String host = "127.0.0.1";
+    private int port = 8000;
+    private int sessions = 50;
+    private int durationSeconds = 30;
+    private int warmupSeconds = 5;
+    private int groups = 1;
+    private int thinkMillis = 0;
+    private boolean binary = false;
+    private int[] weights = {40, 30, 20, 10};
+
+    //results shared by all sessions
+    private final Map<String, LatencyRecorder> latencies = new LinkedHashMap<>();
+    private final Map<String, AtomicLong> errors = new LinkedHashMap<>();
+    private final LatencyRecorder broadcastLatency = new LatencyRecorder();
+    private final AtomicInteger lastMessageId = new AtomicInteger(); // highest id seen in a NEW_MESSAGE
+    private final AtomicInteger failedSessions = new AtomicInteger();
+    private volatile boolean recording = false;
+    private volatile boolean running = true;
+
+    public static void main(String[] argv) throws InterruptedException {
+        LoadGenerator generator = new LoadGenerator();
+        generator.parseArgs(argv);
+        generator.run();
+    }
+
+    private LoadGenerator() {
+        for (String op : new String[] {"LOGIN", "MESSAGE", "GET_MESSAGE", "USERS", "JOIN", "LEAVE"}) {
+            latencies.put(op, new LatencyRecorder());
+            errors.put(op, new AtomicLong());
+        }
+    }
+
+    private void parseArgs(String[] argv) {
+        for (String arg : argv) {
+            String[] kv = arg.replaceFirst("^--", "").split("=", 2);
+            String value = kv.length > 1 ? kv[1] : "";
+            switch (kv[0]) {
+                case "host": host = value; break;
+                case "port": port = Integer.parseInt(value); break;
+                case "sessions": sessions = Integer.parseInt(value); break;
+                case "duration": durationSeconds = Integer.parseInt(value); break;
+                case "warmup": warmupSeconds = Integer.parseInt(value); break;
+                case "groups": groups = Math.max(1, Integer.parseInt(value)); break;
+                case "think": thinkMillis = Integer.parseInt(value); break;
+                case "mix": weights = parseMix(value); break;
+                case "binary": binary = true; break;
+                default: throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+    }
+
+    // "message:40,users:20" -> weights in OPS order, missing ops get 0
+    private static int[] parseMix(String mix) {
+        int[] result = new int[OPS.length];
+        for (String item : mix.split(",")) {
+            String[] kv = item.split(":", 2);
+            int index = -1;
+            for (int i = 0; i < OPS.length; i++) {
+                if (OPS[i].equalsIgnoreCase(kv[0].trim())) index = i;
+            }
+            if (index < 0 || kv.length != 2) throw new IllegalArgumentException("Bad mix entry: " + item);
+            result[index] = Integer.parseInt(kv[1].trim());
+        }
+        return result;
+    }
+
+    private void run() throws InterruptedException {
+        System.out.printf("%d sessions against %s:%d, %d s warm-up + %d s measured, %d group(s), %s protocol%n",
+                sessions, host, port, warmupSeconds, durationSeconds, groups, binary ? "binary" : "text");
+
+        CountDownLatch done = new CountDownLatch(sessions);
+        String runId = Long.toString(System.currentTimeMillis() % 100000, 36);
+        for (int i = 0; i < sessions; i++) {
+            Session session = new Session("lg" + runId + "-" + i, new Random(i));
+            Thread t = new Thread(() -> {
+                try {
+                    session.run();
+                } finally {
+                    done.countDown();
+                }
+            }, "session-" + i);
+            t.start();
+        }
+
+        Thread.sleep(warmupSeconds * 1000L);
+        recording = true;
+        long start = System.nanoTime();
+        Thread.sleep(durationSeconds * 1000L);
+        recording = false;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        running = false;
+        done.await(10, TimeUnit.SECONDS);
+
+        report(elapsed);
+    }
+
+    private void report(double elapsedSeconds) {
+        System.out.printf("%-12s %9s %10s %9s %9s %9s %9s %7s%n",
+                "command", "count", "ops/s", "p50_us", "p99_us", "p999_us", "max_us", "errors");
+        long total = 0;
+        for (Map.Entry<String, LatencyRecorder> entry : latencies.entrySet()) {
+            LatencyRecorder r = entry.getValue();
+            if (r.getCount() == 0) continue;
+            total += r.getCount();
+            printRow(entry.getKey(), r, r.getCount() / elapsedSeconds, errors.get(entry.getKey()).get());
+        }
+        System.out.printf("%-12s %9d %10.0f%n", "total", total, total / elapsedSeconds);
+        if (broadcastLatency.getCount() > 0) {
+            printRow("broadcast", broadcastLatency, broadcastLatency.getCount() / elapsedSeconds, 0);
+        }
+        if (failedSessions.get() > 0) {
+            System.out.println(failedSessions.get() + " session(s) failed");
+        }
+    }
+
+    private static void printRow(String name, LatencyRecorder r, double rate, long errorCount) {
+        System.out.printf(Locale.ROOT, "%-12s %9d %10.0f %9.1f %9.1f %9.1f %9.1f %7d%n",
+                name, r.getCount(), rate,
+                r.percentileNanos(0.50) / 1000.0, r.percentileNanos(0.99) / 1000.0,
+                r.percentileNanos(0.999) / 1000.0, r.getMaxNanos() / 1000.0, errorCount);
+    }
+
+    //one simulated user: its own socket, a reader thread and the command loop on the calling thread
+    private final class Session {
+        private static final String CLOSED = "\u0000closed"; // put on the reply queue when the socket closes
+
+        private final String username;
+        private final Random random;
+        private final BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+        private final boolean[] joined = new boolean[groups + 1]; // index = group id
+        private OutputStream out;
+        private boolean framed = false; // true once the server said OK BINARY
+        private int posted = 0;
+
+        Session(String username, Random random) {
+            this.username = username;
+            this.random = random;
+        }
+
+        void run() {
+            try (Socket socket = new Socket(host, port)) {
+                socket.setTcpNoDelay(true);
+                out = socket.getOutputStream();
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                Thread reader = new Thread(() -> readLoop(in), username + "-reader");
+                reader.setDaemon(true);
+                reader.start();
+
+                expect("WELCOME");
+                if (binary) {
+                    send(BINARY_TAG + " " + ClientProtocol.binary());
+                    expect(BINARY_TAG + " OK BINARY");
+                    framed = true;
+                }
+                // LOGIN also joins the default group: OK LOGIN, then OK JOIN and the USERS line
+                long start = System.nanoTime();
+                send(ClientProtocol.login(username));
+                String reply = take();
+                if (reply.startsWith("OK")) {
+                    expect("OK JOIN");
+                    expect("USERS");
+                    joined[1] = true;
+                }
+                record("LOGIN", start, reply);
+
+                while (running) {
+                    runOne(pick());
+                    if (thinkMillis > 0) Thread.sleep(thinkMillis);
+                }
+
+                send(ClientProtocol.quit());
+            } catch (IOException | InterruptedException e) {
+                if (running) failedSessions.incrementAndGet();
+            }
+        }
+
+        private void runOne(String op) throws IOException, InterruptedException {
+            long start = System.nanoTime();
+            String reply;
+            switch (op) {
+                case "MESSAGE": {
+                    int group = randomJoinedGroup();
+                    String subject = SUBJECT_PREFIX + System.nanoTime();
+                    String content = "load test message " + (++posted) + " from " + username;
+                    if (framed) {
+                        send(BinaryFrames.post(0, group, subject, content));
+                    } else {
+                        send(ClientProtocol.post(String.valueOf(group), subject, content));
+                    }
+                    reply = take();
+                    break;
+                }
+                case "GET_MESSAGE": {
+                    int last = lastMessageId.get();
+                    int id = last == 0 ? 1 : 1 + random.nextInt(last);
+                    if (framed) {
+                        send(BinaryFrames.getMessage(0, id));
+                    } else {
+                        send(ClientProtocol.getMessage(String.valueOf(id)));
+                    }
+                    reply = take();
+                    break;
+                }
+                case "USERS": {
+                    send(ClientProtocol.users(String.valueOf(randomJoinedGroup())));
+                    reply = take();
+                    break;
+                }
+                default: {
+                    // toggle a group other than the default one, so the op can run forever
+                    if (groups < 2) {
+                        op = "JOIN";
+                        send(ClientProtocol.join(ClientProtocol.DEFAULT_GROUP));
+                        reply = take(); // ERR ALREADY_JOINED, still a full round trip
+                        break;
+                    }
+                    int group = 2 + random.nextInt(groups - 1);
+                    if (joined[group]) {
+                        op = "LEAVE";
+                        send(ClientProtocol.leave(String.valueOf(group)));
+                        reply = take();
+                        if (reply.startsWith("OK")) joined[group] = false;
+                    } else {
+                        send(ClientProtocol.join(String.valueOf(group)));
+                        reply = take();
+                        if (reply.startsWith("OK")) {
+                            expect("USERS");
+                            joined[group] = true;
+                        }
+                    }
+                    break;
+                }
+            }
+            record(op, start, reply);
+        }
+
+        private String pick() {
+            int sum = 0;
+            for (int w : weights) sum += w;
+            int r = random.nextInt(Math.max(1, sum));
+            for (int i = 0; i < OPS.length; i++) {
+                r -= weights[i];
+                if (r < 0) return OPS[i];
+            }
+            return OPS[0];
+        }
+
+        private int randomJoinedGroup() {
+            int group;
+            do {
+                group = 1 + random.nextInt(groups);
+            } while (!joined[group]);
+            return group;
+        }
+
+        private void record(String op, long start, String reply) {
+            if (!recording) return;
+            latencies.get(op).record(System.nanoTime() - start);
+            if (reply.startsWith("ERR")) errors.get(op).incrementAndGet();
+        }
+
+        //runs on the reader thread: broadcasts are measured here, everything else is a reply.
+        //after OK BINARY the server sends frames, each one read back as the lines it stands for
+        private void readLoop(InputStream in) {
+            try {
+                boolean frames = false;
+                while (true) {
+                    String[] lines;
+                    if (frames) {
+                        lines = BinaryFrames.read(in);
+                    } else {
+                        String line = BinaryFrames.readLine(in);
+                        lines = line == null ? null : new String[] {line};
+                    }
+                    if (lines == null) break;
+                    long now = System.nanoTime();
+                    for (String line : lines) {
+                        if (!frames && binary && ClientProtocol.isBinaryOk(line, BINARY_TAG)) frames = true;
+                        if (ClientProtocol.isBroadcast(line)) {
+                            onBroadcast(line, now);
+                        } else if (!line.startsWith("MESSAGE_SUMMARY ")) {
+                            replies.add(line);
+                        }
+                    }
+                }
+            } catch (IOException ignored) {
+            } finally {
+                replies.add(CLOSED);
+            }
+        }
+
+        private void onBroadcast(String line, long now) {
+            String[] summary = ClientProtocol.newMessageSummary(line);
+            if (summary == null) return;
+            try {
+                lastMessageId.accumulateAndGet(Integer.parseInt(summary[0]), Math::max);
+                if (recording && summary[3].startsWith(SUBJECT_PREFIX)) {
+                    broadcastLatency.record(now - Long.parseLong(summary[3].substring(SUBJECT_PREFIX.length())));
+                }
+            } catch (NumberFormatException ignored) {}
+        }
+
+        //a text command, as a TEXT frame once the session is in binary mode
+        private void send(String line) throws IOException {
+            send(framed ? BinaryFrames.text(line) : (line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void send(byte[] bytes) throws IOException {
+            out.write(bytes);
+            out.flush();
+        }
+
+        private String take() throws IOException, InterruptedException {
+            String line = replies.take();
+            if (line == CLOSED) throw new IOException("Connection closed");
+            return line;
+        }
+
+        private void expect(String prefix) throws IOException, InterruptedException {
+            String line = take();
+            if (!line.startsWith(prefix)) throw new IOException("Expected " + prefix + " but got: " + line);
+        }
+    }
+}
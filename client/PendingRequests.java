@@ -0,0 +1,42 @@
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// requests that were sent with a tag ("#17 GET_MESSAGE 42") and are still waiting for their reply.
+// the server puts the same tag in front of every reply line, so replies can be matched up even when
+// many requests are in flight and broadcasts arrive in between.
+// a future completes with the first reply line for its tag (tag removed); any further lines for the
+// same tag (the USERS line after OK JOIN, for example) are left for the listener to print.
+public final class PendingRequests {
+
+    private final Map<String, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextTag = new AtomicInteger(1);
+
+    //make a new tag and the future its reply will complete
+    public String register(CompletableFuture<String> reply) {
+        String tag = "#" + nextTag.getAndIncrement();
+        pending.put(tag, reply);
+        return tag;
+    }
+
+    //called by the listener for every line from the server; returns true if the line was a reply we were waiting for
+    public boolean complete(String line) {
+        if (!line.startsWith("#")) return false;
+        int space = line.indexOf(' ');
+        if (space < 0) return false;
+        CompletableFuture<String> reply = pending.remove(line.substring(0, space));
+        if (reply == null) return false;
+        reply.complete(line.substring(space + 1));
+        return true;
+    }
+
+    //the connection is gone, nothing else is coming
+    public void failAll() {
+        for (String tag : pending.keySet()) {
+            CompletableFuture<String> reply = pending.remove(tag);
+            if (reply != null) reply.completeExceptionally(new IOException("Connection closed"));
+        }
+    }
+}
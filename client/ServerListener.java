@@ -1,41 +1,89 @@
-//importing the buffered reader to read tet from server and socket for the tcp connection to the server
-import java.io.BufferedReader;
+//importing the input stream to read from the server and socket for the tcp connection to the server
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
+import java.util.zip.InflaterInputStream;
 
 //class for the server listener and it will be able to run on a separate thread
 public class ServerListener implements Runnable {
-    //buffered reader for getting the text that is sent by the server
-    private final BufferedReader in;
+    //stream for getting what is sent by the server: text lines, or binary frames after OK BINARY.
+    //after OK COMPRESS it is read through an inflater
+    private InputStream in;
 
     //socket for the tcp connection to the server
     private final Socket socket;
 
+    //tagged requests waiting for a reply (can be null when nothing is pipelined)
+    private final PendingRequests pending;
+
+    //tag of the BINARY and COMPRESS requests waiting for their OK, null when there is none
+    private volatile String binaryTag = null;
+    private volatile String compressTag = null;
+
     //constructor to initialize the reader and seocket  
-    public ServerListener(BufferedReader in, Socket socket) {
+    public ServerListener(InputStream in, Socket socket) {
+        this(in, socket, null);
+    }
+
+    public ServerListener(InputStream in, Socket socket, PendingRequests pending) {
         this.in = in;
         this.socket = socket;
+        this.pending = pending;
+    }
+
+    //call before sending BINARY with this tag, so the reader switches to frames right after its reply
+    public void awaitBinary(String tag) {
+        binaryTag = tag;
+    }
+
+    //call before sending COMPRESS with this tag, so the reader starts inflating right after its reply
+    public void awaitCompress(String tag) {
+        compressTag = tag;
     }
 
     //run function runs when the server listener thread will start
     @Override
     public void run() {
         try {
-            //this will store all of the lines that are sent by the server
-            String line;
-
-            //keep reading the lines until the server closes the stream
-            while ((line = in.readLine()) != null) {
-                //printing the message from the server so it can be seen
-                System.out.println("\n[SERVER] " + line);
-                System.out.print("> ");
+            //true once the server said OK BINARY, then every reply is a frame
+            boolean binary = false;
+
+            //keep reading until the server closes the stream. a binary frame can stand for several lines
+            while (true) {
+                String[] lines = binary ? BinaryFrames.read(in) : single(BinaryFrames.readLine(in));
+                if (lines == null) break;
+
+                for (String line : lines) {
+                    if (!binary && ClientProtocol.isBinaryOk(line, binaryTag)) {
+                        binary = true;
+                        binaryTag = null;
+                    }
+                    //the zlib stream starts right after this line (nothing after it has been read yet)
+                    if (ClientProtocol.isCompressOk(line, compressTag)) {
+                        in = new BufferedInputStream(new InflaterInputStream(in));
+                        compressTag = null;
+                    }
+
+                    //a reply to a pipelined request goes to whoever is waiting for it instead of the screen
+                    if (pending != null && pending.complete(line)) continue;
+
+                    //printing the message from the server so it can be seen
+                    System.out.println("\n[SERVER] " + line);
+                    System.out.print("> ");
+                }
             }
         } catch (IOException e) {
             //closing the socket
             System.out.println("Server connection closed.");
         } finally {
+            if (pending != null) pending.failAll();
             try { socket.close(); } catch (IOException ignored) {}
         }
     }
+
+    private static String[] single(String line) {
+        return line == null ? null : new String[] {line};
+    }
 }
 
@@ -0,0 +1,117 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Text lines vs binary frames for the commands a high-volume client sends most.
+ * Requests go through ClientHandler.receive() the way the engines deliver them, and every
+ * queued reply (and the NEW_MESSAGE a second member of the group gets) is drained afterwards,
+ * so parsing, handling, reply encoding and fan-out all count. Also prints the bytes sent each way.
+ *
+ * Usage: java -cp out/production/server:out/bench server.BinaryBench [rounds]
+ */
+public class BinaryBench {
+    private static final String SUBJECT = "A typical subject line";
+    private static final String CONTENT = "Some message content that is about this long";
+    private static final int WARMUP = 200_000;
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        var server = new Server(0);
+        Log.configure(Log.Level.WARN, 1); // Leave the per-command INFO logging out of it
+
+        Pair text = new Pair(server, false, 2);
+        Pair binary = new Pair(server, true, 3);
+        text.poster.handleLine("MESSAGE 2 " + SUBJECT + "|" + CONTENT);
+        binary.poster.handleLine("MESSAGE 3 " + SUBJECT + "|" + CONTENT);
+        int textId = server.getGroup(2).getMessages().get(0).getId();
+        int binaryId = server.getGroup(3).getMessages().get(0).getId();
+
+        run("text", "MESSAGE", rounds, text, line("MESSAGE 2 " + SUBJECT + "|" + CONTENT));
+        run("binary", "MESSAGE", rounds, binary, frame(new BinaryProtocol.FrameWriter(64).opcode(BinaryProtocol.MESSAGE)
+                .putVarint(0).putVarint(3).putString(SUBJECT).putString(CONTENT)));
+        run("text", "GET_MESSAGE", rounds, text, line("GET_MESSAGE " + textId));
+        run("binary", "GET_MESSAGE", rounds, binary, frame(new BinaryProtocol.FrameWriter(8).opcode(BinaryProtocol.GET_MESSAGE)
+                .putVarint(0).putVarint(binaryId)));
+        run("text", "PING", rounds, text, line("PING"));
+        run("binary", "PING", rounds, binary, frame(new BinaryProtocol.FrameWriter(2).opcode(BinaryProtocol.PING).putVarint(0)));
+    }
+
+    // A poster and a watcher in their own group, both using one protocol mode.
+    private static final class Pair {
+        final OutboundQueue posterQueue = queue();
+        final OutboundQueue watcherQueue = queue();
+        final ClientHandler poster;
+        final ClientHandler watcher;
+
+        Pair(Server server, boolean binary, int group) {
+            poster = new ClientHandler(server, posterQueue, new InetSocketAddress(0));
+            watcher = new ClientHandler(server, watcherQueue, new InetSocketAddress(0));
+            for (ClientHandler handler : new ClientHandler[] {poster, watcher}) {
+                if (binary) {
+                    handler.handleLine("BINARY");
+                }
+                handler.handleLine("#1 LOGIN bench" + group + (handler == poster ? "p" : "w"));
+                handler.handleLine("JOIN " + group);
+            }
+            drain(posterQueue);
+            drain(watcherQueue);
+        }
+    }
+
+    private static OutboundQueue queue() {
+        return new OutboundQueue(Integer.MAX_VALUE, OutboundQueue.OverflowPolicy.DROP_OLDEST, () -> {}, () -> {});
+    }
+
+    private static byte[] line(String line) {
+        return (line + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] frame(BinaryProtocol.FrameWriter writer) {
+        ByteBuffer frame = writer.finish();
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        return bytes;
+    }
+
+    private static void run(String mode, String command, int rounds, Pair pair, byte[] request) {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        for (int i = 0; i < WARMUP; i++) {
+            pair.poster.receive(request, 0, request.length);
+            drain(pair.posterQueue);
+            drain(pair.watcherQueue);
+        }
+
+        long replyBytes = 0;
+        long broadcastBytes = 0;
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long cpuBefore = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < rounds; i++) {
+            pair.poster.receive(request, 0, request.length);
+            replyBytes += drain(pair.posterQueue);
+            broadcastBytes += drain(pair.watcherQueue);
+        }
+        long cpu = threads.getCurrentThreadCpuTime() - cpuBefore;
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+
+        System.out.printf("%-6s %-11s %7.1f ns cpu/op  %6.1f bytes alloc/op  request %3d B  reply %5.1f B  broadcast %5.1f B%n",
+                mode, command, cpu / (double) rounds, allocated / (double) rounds, request.length,
+                replyBytes / (double) rounds, broadcastBytes / (double) rounds);
+    }
+
+    // Consume every queued frame in place, like a gathering write. Returns the bytes written.
+    private static long drain(OutboundQueue queue) {
+        long bytes = 0;
+        for (ByteBuffer frame : queue.drain()) {
+            bytes += frame.remaining();
+            frame.position(frame.limit());
+        }
+        queue.finishDrain();
+        return bytes;
+    }
+}
@@ -0,0 +1,173 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Starts a cluster of local server JVMs and checks that clients on different nodes see one
+ * board: usernames, USERS, NEW_MESSAGE, GET_MESSAGE, HISTORY, CREATE_GROUP and a node leaving.
+ * Then times posts from every node to groups owned by any node (forwarded or not).
+ * Client ports are <port>, <port>+1, ...; cluster ports are 100 above them.
+ *
+ * Usage: java -cp out/production/server:out/bench server.ClusterCheck [nodes] [port] [posts] [server options...]
+ */
+public class ClusterCheck {
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 9500;
+        int posts = args.length > 2 ? Integer.parseInt(args[2]) : 3000;
+        List<String> options = args.length > 3 ? Arrays.asList(args).subList(3, args.length) : List.of();
+
+        var cluster = new StringBuilder();
+        for (int i = 1; i <= nodes; i++) {
+            cluster.append(i == 1 ? "" : ",").append(i).append("@127.0.0.1:").append(port + 99 + i);
+        }
+        List<Process> processes = new ArrayList<>();
+        try {
+            for (int i = 1; i <= nodes; i++) {
+                List<String> command = new ArrayList<>(List.of(
+                        System.getProperty("java.home") + "/bin/java", "-cp", System.getProperty("java.class.path"),
+                        "server.Main", Integer.toString(port + i - 1), "--node-id=" + i, "--cluster=" + cluster,
+                        "--log-level=warn"));
+                command.addAll(options);
+                processes.add(new ProcessBuilder(command).inheritIO().start());
+            }
+            for (int i = 0; i < nodes; i++) {
+                awaitPort(port + i);
+            }
+            Thread.sleep(1500); // Let the links connect (they retry every 500 ms)
+
+            List<Client> clients = new ArrayList<>();
+            for (int i = 0; i < nodes; i++) {
+                Client client = new Client(port + i);
+                client.send("LOGIN user" + i);
+                check("login on node " + (i + 1), client.expect("OK LOGIN"), "OK LOGIN");
+                client.expect("USERS 1");
+                clients.add(client);
+            }
+            Client first = clients.get(0);
+            Client last = clients.get(nodes - 1);
+            Thread.sleep(200); // Joins are relayed asynchronously
+
+            var duplicate = new Client(port + nodes - 1);
+            duplicate.send("LOGIN USER0");
+            check("username taken on another node", duplicate.expect("ERR"), "ERR USERNAME_EXISTS");
+            duplicate.close();
+
+            first.send("USERS 1");
+            Set<String> users = new HashSet<>(Arrays.asList(first.expect("USERS 1").split(" ", 3)[2].split(",")));
+            check("USERS lists members on every node", users.size(), nodes - 1);
+
+            first.send("MESSAGE 1 hello|from node 1");
+            check("post", first.expect("OK MESSAGE"), "OK MESSAGE");
+            String summary = last.expect("NEW_MESSAGE 1 ");
+            String id = summary.substring("NEW_MESSAGE 1 ".length(), summary.indexOf('|'));
+            check("NEW_MESSAGE reaches the last node", summary.contains("|user0|"), true);
+            last.send("GET_MESSAGE " + id);
+            check("GET_MESSAGE on the last node", last.expect("from node"), "from node 1");
+            last.send("HISTORY 1 0 1");
+            last.expect("HISTORY 1 1");
+            check("HISTORY on the last node", last.expect("MESSAGE_SUMMARY").startsWith("MESSAGE_SUMMARY 1 " + id + "|"), true);
+
+            last.send("CREATE_GROUP cluster-check");
+            String created = last.expect("OK CREATE_GROUP");
+            String groupId = created.split(" ")[2];
+            first.send("JOIN " + groupId);
+            check("join a group created on another node", first.expect("OK JOIN"), "OK JOIN cluster-check");
+            last.send("CREATE_GROUP Cluster-Check");
+            check("group names are unique across nodes", last.expect("ERR"), "ERR GROUP_EXISTS");
+
+            // Every client posts to every built-in group, so most posts go to another node's group.
+            for (Client client : clients) {
+                for (int group = 2; group <= 5; group++) {
+                    client.send("JOIN " + group);
+                    client.expect("OK JOIN");
+                }
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < posts; i++) {
+                Client client = clients.get(i % nodes);
+                client.send("MESSAGE " + (1 + i % 5) + " load|post " + i);
+                client.expect("OK MESSAGE");
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("%d posts from %d nodes: %.1f us per post (request to OK MESSAGE)%n",
+                    posts, nodes, elapsed / 1000.0 / posts);
+
+            processes.get(nodes - 1).destroy();
+            processes.get(nodes - 1).waitFor();
+            check("node leaving sends USER_LEFT", first.expect("USER_LEFT 1 user"), "USER_LEFT 1 user" + (nodes - 1));
+            first.send("USERS 1");
+            check("USERS after a node left", first.expect("USERS 1").split(",").length, Math.max(1, nodes - 2));
+        } finally {
+            for (Process process : processes) {
+                process.destroy();
+            }
+        }
+        System.out.println(failures == 0 ? "All checks passed" : failures + " checks failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void awaitPort(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 300; attempt++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Node on port " + port + " did not start");
+    }
+
+    private static void check(String name, Object actual, Object expected) {
+        boolean ok = expected.equals(actual);
+        if (!ok) {
+            failures++;
+        }
+        System.out.println((ok ? "ok    " : "FAIL  ") + name + (ok ? "" : ": got " + actual + ", expected " + expected));
+    }
+
+    // A text protocol client that skips lines it isn't waiting for (broadcasts, earlier replies).
+    private static final class Client {
+        final Socket socket;
+        final BufferedReader in;
+        final OutputStream out;
+
+        Client(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setSoTimeout(5000);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = socket.getOutputStream();
+        }
+
+        void send(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        String expect(String prefix) throws IOException {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(prefix)) {
+                    return line;
+                }
+            }
+            throw new IOException("Connection closed waiting for " + prefix);
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Bytes on the wire and writer CPU with COMPRESS on, for three kinds of output:
+ *   interactive: one NEW_MESSAGE per batch (every frame is sync-flushed on its own)
+ *   history:     a HISTORY page of 1000 summaries in one batch (catch-up after JOIN)
+ *   bodies:      a GET_MESSAGES reply with 100 bodies of about 500 bytes in one batch
+ * Each run goes through one StreamCompressor, the way one connection's writer would.
+ *
+ * Usage: java -cp out/production/server:out/bench server.CompressBench [rounds] [level]
+ */
+public class CompressBench {
+    private static final String[] WORDS = {
+        "the", "server", "message", "group", "board", "today", "meeting", "moved", "to", "room",
+        "please", "check", "schedule", "and", "reply", "before", "friday", "thanks", "for", "update"
+    };
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int level = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        var random = new Random(1);
+
+        List<List<ByteBuffer>> interactive = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            interactive.add(List.of(summary(random, "NEW_MESSAGE 1 ", 10000 + i)));
+        }
+        List<ByteBuffer> history = new ArrayList<>();
+        history.add(OutboundQueue.encode("HISTORY 1 1000"));
+        for (int i = 0; i < 1000; i++) {
+            history.add(summary(random, "MESSAGE_SUMMARY 1 ", 10000 + i));
+        }
+        List<ByteBuffer> bodies = new ArrayList<>();
+        bodies.add(OutboundQueue.encode("MESSAGES 100"));
+        for (int i = 0; i < 100; i++) {
+            bodies.add(OutboundQueue.encode("CONTENT " + (10000 + i) + " " + words(random, 90)));
+        }
+
+        run("interactive", interactive, rounds / 100, level);
+        run("history", List.of(history), rounds, level);
+        run("bodies", List.of(bodies), rounds, level);
+    }
+
+    private static ByteBuffer summary(Random random, String prefix, int id) {
+        return OutboundQueue.encode(prefix + id + "|user" + random.nextInt(50) + "|2026-01-01 12:00:"
+                + (10 + random.nextInt(50)) + "|" + words(random, 4));
+    }
+
+    private static String words(Random random, int count) {
+        var text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            text.append(i == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+
+    // Send the batches rounds times over one stream and report per-batch averages.
+    private static void run(String name, List<List<ByteBuffer>> batches, int rounds, int level) {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        ByteBuffer start = OutboundQueue.encode("OK COMPRESS");
+        var compressor = new StreamCompressor(start, level);
+        compressor.compress(List.of(start)); // The queue hands the writer this very frame
+
+        long raw = 0;
+        long sent = 0;
+        long cpuBefore = threads.getCurrentThreadCpuTime();
+        for (int round = 0; round < rounds; round++) {
+            for (List<ByteBuffer> batch : batches) {
+                List<ByteBuffer> frames = new ArrayList<>(batch.size());
+                for (ByteBuffer frame : batch) {
+                    raw += frame.remaining();
+                    frames.add(frame.duplicate());
+                }
+                for (ByteBuffer out : compressor.compress(frames)) {
+                    sent += out.remaining();
+                }
+            }
+        }
+        long cpu = threads.getCurrentThreadCpuTime() - cpuBefore;
+        compressor.end();
+
+        long count = (long) rounds * batches.size();
+        System.out.printf("%-12s %9.0f bytes raw/batch  %9.0f bytes sent/batch  %5.1f%%  %8.1f us cpu/batch%n",
+                name, raw / (double) count, sent / (double) count, 100.0 * sent / raw, cpu / 1000.0 / count);
+    }
+}
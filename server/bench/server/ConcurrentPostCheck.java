@@ -0,0 +1,86 @@
+package server;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Many threads post to one group at once, then checks what ordering by id promises: the
+ * history is in id order, every HISTORY page only holds messages before its cut-off id, and
+ * SEARCH finds every message by the word only it contains.
+ *
+ * Usage: java -cp out/production/server:out/bench server.ConcurrentPostCheck [threads] [posts per thread]
+ */
+public class ConcurrentPostCheck {
+    private static int failures = 0;
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int posts = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        var server = new Server(ServerConfig.parse(new String[] {"0", "--log-level=warn"}));
+        Group group = server.getDefaultGroup();
+
+        Thread[] posters = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            var sender = new ClientHandler(server, new OutboundQueue(1, OutboundQueue.OverflowPolicy.DROP_OLDEST,
+                    () -> {}, () -> {}), new InetSocketAddress(0));
+            sender.username = "poster" + t;
+            int thread = t;
+            posters[t] = new Thread(() -> {
+                for (int i = 0; i < posts; i++) {
+                    server.post(group, sender, "post " + i, "body t" + thread + "x" + i);
+                }
+            });
+        }
+        for (Thread poster : posters) {
+            poster.start();
+        }
+        for (Thread poster : posters) {
+            poster.join();
+        }
+
+        List<Message> messages = group.getMessages();
+        check("every post stored", messages.size(), threads * posts);
+        int inversions = 0;
+        for (int i = 1; i < messages.size(); i++) {
+            if (messages.get(i).getId() <= messages.get(i - 1).getId()) {
+                inversions++;
+            }
+        }
+        check("history in id order (inversions)", inversions, 0);
+
+        var random = new Random(1);
+        int badPages = 0;
+        for (int i = 0; i < 1000; i++) {
+            int before = messages.get(1 + random.nextInt(messages.size() - 1)).getId();
+            for (Message message : group.getMessagesBefore(before, 50)) {
+                if (message.getId() >= before) {
+                    badPages++;
+                    break;
+                }
+            }
+        }
+        check("HISTORY pages before their cut-off (bad pages)", badPages, 0);
+
+        int missing = 0;
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < posts; i++) {
+                if (group.search("t" + t + "x" + i, 1).size() != 1) {
+                    missing++;
+                }
+            }
+        }
+        check("SEARCH finds every message by its own word (missing)", missing, 0);
+
+        System.out.println(failures == 0 ? "All checks passed" : failures + " checks failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void check(String name, Object actual, Object expected) {
+        boolean ok = expected.equals(actual);
+        if (!ok) {
+            failures++;
+        }
+        System.out.println((ok ? "ok    " : "FAIL  ") + name + (ok ? "" : ": got " + actual + ", expected " + expected));
+    }
+}
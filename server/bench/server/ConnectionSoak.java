@@ -0,0 +1,117 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Opens many idle connections against an in-process server and reports what each one costs.
+ * Used to compare --executor=thread, --executor=pool and --executor=virtual (and --engine=nio).
+ *
+ * Usage: java -cp out/production/server:out/bench server.ConnectionSoak <connections> [server options...]
+ * Example: java -Xss1m -cp out/production/server:out/bench server.ConnectionSoak 5000 9300 --executor=virtual
+ *
+ * Client sockets live in the same JVM, so the numbers include their (small, mode independent) cost.
+ */
+public class ConnectionSoak {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: ConnectionSoak <connections> [server options...]");
+            return;
+        }
+        int connections = Integer.parseInt(args[0]);
+        ServerConfig config = ServerConfig.parse(Arrays.copyOfRange(args, 1, args.length));
+        Server server = new Server(config);
+
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                System.err.println("Server failed: " + e.getMessage());
+            }
+        }, "soak-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        waitForPort(config.getPort());
+
+        Sample before = Sample.take();
+        List<Socket> sockets = new ArrayList<>(connections);
+        long started = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            Socket socket = new Socket("localhost", config.getPort());
+            // Wait for WELCOME so we know the server is really holding the connection.
+            new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+            sockets.add(socket);
+        }
+        long connectMillis = (System.nanoTime() - started) / 1_000_000;
+        while (server.getClientCount() < connections) {
+            Thread.sleep(10);
+        }
+        Sample after = Sample.take();
+
+        System.out.println("mode:            " + config.getEngine().name().toLowerCase()
+                + (config.getEngine() == ServerConfig.Engine.BLOCKING ? "/" + config.getExecutor().name().toLowerCase() : ""));
+        System.out.println("connections:     " + server.getClientCount() + " (opened in " + connectMillis + " ms)");
+        System.out.println("platform threads: " + before.threads + " -> " + after.threads);
+        System.out.printf("heap per conn:   %.1f KB%n", (after.heapBytes - before.heapBytes) / 1024.0 / connections);
+        System.out.printf("rss per conn:    %.1f KB%n", (after.rssKb - before.rssKb) / (double) connections);
+
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        server.stop();
+    }
+
+    private static void waitForPort(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+
+    // Process-wide memory and thread numbers at one point in time.
+    private static class Sample {
+        long heapBytes;
+        long rssKb;
+        int threads;
+
+        static Sample take() throws InterruptedException {
+            for (int i = 0; i < 3; i++) {
+                System.gc();
+                Thread.sleep(100);
+            }
+            var sample = new Sample();
+            Runtime rt = Runtime.getRuntime();
+            sample.heapBytes = rt.totalMemory() - rt.freeMemory();
+            sample.threads = ManagementFactory.getThreadMXBean().getThreadCount();
+            sample.rssKb = readRssKb();
+            return sample;
+        }
+
+        // Resident set size from /proc (Linux only); 0 elsewhere.
+        private static long readRssKb() {
+            try {
+                for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                    if (line.startsWith("VmRSS:")) {
+                        return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                    }
+                }
+            } catch (IOException | RuntimeException ignored) {
+                // Not Linux
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package server;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Random;
+
+/*
+ * Heap used by a long history with contents on the heap and with --content-store, and what
+ * reading a content costs: "hot" reads pick among the newest messages (in the cache), "cold"
+ * reads pick anywhere in the history (mostly from the file, which the OS page cache may hold).
+ *
+ * Usage: java -Xmx4g -cp out/production/server:out/bench server.ContentBench [messages] [content chars] [cache MB]
+ */
+public class ContentBench {
+    private static final int READS = 200_000;
+    private static final int HOT_MESSAGES = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int length = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        String cacheMb = args.length > 2 ? args[2] : "64";
+        Path directory = Files.createTempDirectory("content-bench");
+
+        run("heap", new String[] {"0", "--log-level=warn"}, count, length);
+        run("store", new String[] {"0", "--log-level=warn", "--content-store=" + directory, "--content-cache=" + cacheMb},
+                count, length);
+
+        Files.deleteIfExists(directory.resolve("content.dat"));
+        Files.deleteIfExists(directory);
+    }
+
+    private static void run(String label, String[] options, int count, int length) {
+        long heapBefore = usedHeap();
+        var server = new Server(ServerConfig.parse(options));
+        Group group = server.getGroup(1);
+        var random = new Random(1);
+        char[] text = new char[length];
+        int[] ids = new int[count];
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            for (int c = 0; c < length; c++) {
+                text[c] = (char) ('a' + random.nextInt(26));
+            }
+            var message = new Message("user" + (i % 100), "subject " + i, new String(text));
+            server.postMessage(group, message);
+            ids[i] = message.getId();
+        }
+        long postNanos = System.nanoTime() - start;
+        long heapAfter = usedHeap();
+
+        double hot = read(server, ids, count - HOT_MESSAGES, count, random);
+        double cold = read(server, ids, 0, count, random);
+        ContentStore store = server.getContentStore();
+        System.out.printf(Locale.ROOT, "%-5s %d messages x %d chars: post %.2f us, heap %.1f MB, hot read %.2f us, cold read %.2f us%s%n",
+                label, count, length, postNanos / 1e3 / count, (heapAfter - heapBefore) / 1e6, hot, cold,
+                store == null ? "" : String.format(Locale.ROOT, " (cache hits %d, misses %d, file %.1f MB)",
+                        store.getHits(), store.getMisses(), store.getFileSize() / 1e6));
+        server.stop();
+    }
+
+    // Mean microseconds to look up and read one content with an id picked in [from, to).
+    private static double read(Server server, int[] ids, int from, int to, Random random) {
+        long chars = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            int id = ids[from + random.nextInt(to - from)];
+            chars += server.findMessage(id).getMessage().getContent().length();
+        }
+        long nanos = System.nanoTime() - start;
+        if (chars == 0) {
+            throw new IllegalStateException("Nothing read");
+        }
+        return nanos / 1e3 / READS;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
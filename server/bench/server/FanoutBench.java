@@ -0,0 +1,82 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Cost of one NEW_MESSAGE fan-out to a group, with and without encode-once frames.
+ *   per-member: every member encodes the line itself (what Group.broadcast() used to do)
+ *   shared:     Group.broadcast() encodes once and queues a duplicate() for each member
+ * Each fan-out is followed by draining every member's queue the way the NIO writer does
+ * (the bytes are consumed in place), so writer-side copies are counted too.
+ *
+ * Usage: java -cp out/production/server:out/bench server.FanoutBench [members...]
+ */
+public class FanoutBench {
+    private static final String LINE = "NEW_MESSAGE 1 12345|someone|2026-01-01 12:00:00|A typical subject line";
+    private static final int WARMUP = 300;
+    private static final int ROUNDS = 1000;
+
+    public static void main(String[] args) {
+        int[] sizes = args.length > 0 ? new int[args.length] : new int[] {1000, 10000};
+        for (int i = 0; i < args.length; i++) {
+            sizes[i] = Integer.parseInt(args[i]);
+        }
+
+        var server = new Server(0);
+        for (int members : sizes) {
+            Group group = new Group(1, "bench");
+            List<OutboundQueue> queues = new ArrayList<>();
+            List<ClientHandler> handlers = new ArrayList<>();
+            for (int i = 0; i < members; i++) {
+                var queue = new OutboundQueue(Integer.MAX_VALUE, OutboundQueue.OverflowPolicy.DROP_OLDEST, () -> {}, () -> {});
+                var handler = new ClientHandler(server, queue, new InetSocketAddress(0));
+                queues.add(queue);
+                handlers.add(handler);
+                group.addMember(handler);
+            }
+
+            run("per-member", members, () -> {
+                for (ClientHandler handler : handlers) {
+                    handler.send(LINE);
+                }
+            }, queues);
+            run("shared", members, () -> group.broadcast(LINE, null), queues);
+        }
+    }
+
+    private static void run(String name, int members, Runnable fanout, List<OutboundQueue> queues) {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        for (int i = 0; i < WARMUP; i++) {
+            fanout.run();
+            drainAll(queues);
+        }
+
+        long bytesBefore = threads.getThreadAllocatedBytes(thread);
+        long cpuBefore = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            fanout.run();
+            drainAll(queues);
+        }
+        long bytes = threads.getThreadAllocatedBytes(thread) - bytesBefore;
+        long cpu = threads.getCurrentThreadCpuTime() - cpuBefore;
+
+        System.out.printf("%6d members  %-10s  %10.0f bytes/fan-out  %6.1f bytes/member  %8.1f us cpu/fan-out%n",
+                members, name, bytes / (double) ROUNDS, bytes / (double) ROUNDS / members, cpu / 1000.0 / ROUNDS);
+    }
+
+    // Consume every queued frame in place, like a gathering write.
+    private static void drainAll(List<OutboundQueue> queues) {
+        for (OutboundQueue queue : queues) {
+            for (ByteBuffer frame : queue.drain()) {
+                frame.position(frame.limit());
+            }
+            queue.finishDrain();
+        }
+    }
+}
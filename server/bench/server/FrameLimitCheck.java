@@ -0,0 +1,148 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Binary mode replies far longer than one frame may be: GET_MESSAGES for many large bodies,
+ * GET_MESSAGE for a body over the limit, and USERS of a group with many long names. Checks that
+ * no frame the server queues is longer than BinaryProtocol.MAX_FRAME_LENGTH and that the
+ * fragments join back into the whole reply.
+ *
+ * Usage: java -cp out/production/server:out/bench server.FrameLimitCheck
+ */
+public class FrameLimitCheck {
+    private static final int MESSAGES = 1000;
+    private static final int CONTENT_LENGTH = 2000;
+    private static final int MEMBERS = 3000;
+    private static final int NAME_LENGTH = 400;
+    private static int failures = 0;
+
+    public static void main(String[] args) {
+        var server = new Server(0);
+        Log.configure(Log.Level.WARN, 1);
+        var queue = new OutboundQueue(Integer.MAX_VALUE, OutboundQueue.OverflowPolicy.DROP_OLDEST, () -> {}, () -> {});
+        var client = new ClientHandler(server, queue, new InetSocketAddress(0));
+        client.handleLine("BINARY");
+        client.handleLine("LOGIN checker");
+        Group group = server.getDefaultGroup();
+
+        List<String> contents = new ArrayList<>();
+        var ids = new BinaryProtocol.FrameWriter(16 + MESSAGES * 4).opcode(BinaryProtocol.GET_MESSAGES)
+                .putVarint(7).putVarint(MESSAGES);
+        for (int i = 0; i < MESSAGES; i++) {
+            String content = text('a' + i % 26, CONTENT_LENGTH);
+            contents.add(content);
+            ids.putVarint(server.post(group, client, "subject " + i, content).getId());
+        }
+        String huge = text('z', BinaryProtocol.MAX_FRAME_LENGTH * 3);
+        int hugeId = server.post(group, client, "huge", huge).getId();
+        drain(queue);
+
+        List<byte[]> bodies = receive(client, queue, ids);
+        check("GET_MESSAGES: one reply", bodies.size(), 1);
+        var reader = reader(bodies.get(0));
+        check("GET_MESSAGES: opcode", reader.readByte(), BinaryProtocol.MESSAGES);
+        check("GET_MESSAGES: tag", reader.readInt(), 7);
+        check("GET_MESSAGES: count", reader.readInt(), MESSAGES);
+        int wrong = 0;
+        for (int i = 0; i < MESSAGES; i++) {
+            reader.readInt();
+            if (reader.readInt() != 1 || !reader.readString().equals(contents.get(i))) {
+                wrong++;
+            }
+        }
+        check("GET_MESSAGES: every body (wrong)", wrong, 0);
+
+        bodies = receive(client, queue, new BinaryProtocol.FrameWriter(8).opcode(BinaryProtocol.GET_MESSAGE)
+                .putVarint(8).putVarint(hugeId));
+        reader = reader(bodies.get(0));
+        check("GET_MESSAGE over the limit: opcode", reader.readByte(), BinaryProtocol.CONTENT);
+        reader.readInt();
+        reader.readInt();
+        check("GET_MESSAGE over the limit: body", reader.readString().equals(huge), true);
+
+        for (int i = 0; i < MEMBERS; i++) {
+            var member = new ClientHandler(server, new OutboundQueue(1, OutboundQueue.OverflowPolicy.DROP_OLDEST,
+                    () -> {}, () -> {}), new InetSocketAddress(0));
+            member.username = i + text('m', NAME_LENGTH);
+            group.addMember(member);
+        }
+        client.handleLine("USERS " + group.getId());
+        bodies = frames(queue);
+        reader = reader(bodies.get(0));
+        check("USERS of a huge group: opcode", reader.readByte(), BinaryProtocol.TEXT);
+        String line = new String(bodies.get(0), 1, bodies.get(0).length - 1, StandardCharsets.UTF_8);
+        check("USERS of a huge group: names", line.substring(line.indexOf(' ', 6) + 1).split(",").length, MEMBERS);
+
+        System.out.println(failures == 0 ? "All checks passed" : failures + " checks failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    // Feed one client -> server frame to the handler and return the reply bodies it queued.
+    private static List<byte[]> receive(ClientHandler client, OutboundQueue queue, BinaryProtocol.FrameWriter frame) {
+        ByteBuffer buffer = frame.finish();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        client.receive(bytes, 0, bytes.length);
+        return frames(queue);
+    }
+
+    // Split what is queued into frame bodies, joining fragments, and check every frame's length.
+    private static List<byte[]> frames(OutboundQueue queue) {
+        byte[] stream = drain(queue);
+        var reader = new BinaryProtocol.FrameReader(stream, 0, stream.length);
+        List<byte[]> bodies = new ArrayList<>();
+        var joined = new ByteArrayOutputStream();
+        int tooLong = 0;
+        while (reader.position() < stream.length) {
+            int length = reader.readInt();
+            if (length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                tooLong++;
+            }
+            int start = reader.position();
+            int opcode = stream[start] & 0xff;
+            if (opcode == BinaryProtocol.FRAGMENT || opcode == BinaryProtocol.LAST_FRAGMENT) {
+                joined.write(stream, start + 1, length - 1);
+                if (opcode == BinaryProtocol.LAST_FRAGMENT) {
+                    bodies.add(joined.toByteArray());
+                    joined.reset();
+                }
+            } else {
+                byte[] body = new byte[length];
+                System.arraycopy(stream, start, body, 0, length);
+                bodies.add(body);
+            }
+            reader = new BinaryProtocol.FrameReader(stream, start + length, stream.length);
+        }
+        check("frames no longer than " + BinaryProtocol.MAX_FRAME_LENGTH + " bytes (too long)", tooLong, 0);
+        check("fragments finished", joined.size(), 0);
+        return bodies;
+    }
+
+    private static byte[] drain(OutboundQueue queue) {
+        byte[] bytes = OutboundQueue.coalesce(queue.drain());
+        queue.finishDrain();
+        return bytes;
+    }
+
+    private static BinaryProtocol.FrameReader reader(byte[] body) {
+        return new BinaryProtocol.FrameReader(body, 0, body.length);
+    }
+
+    private static String text(int c, int length) {
+        return String.valueOf((char) c).repeat(length);
+    }
+
+    private static void check(String name, Object actual, Object expected) {
+        boolean ok = expected.equals(actual);
+        if (!ok) {
+            failures++;
+        }
+        System.out.println((ok ? "ok    " : "FAIL  ") + name + (ok ? "" : ": got " + actual + ", expected " + expected));
+    }
+}
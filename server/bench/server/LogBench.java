@@ -0,0 +1,68 @@
+package server;
+
+import java.util.concurrent.CountDownLatch;
+
+/*
+ * Cost of logging one client command line from many threads at once.
+ *   println: System.out.println on the calling thread (what the handlers used to do)
+ *   log:     Log.info, printed later by the log-writer thread
+ *   sampled: Log.info behind Log.sampleCommand() with --log-sample=100
+ *   off:     Log.info with the level set to WARN
+ * Run with stdout sent to /dev/null so only the logging path itself is measured.
+ *
+ * Usage: java -cp out/production/server:out/bench server.LogBench [threads] [lines per thread] > /dev/null
+ */
+public class LogBench {
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int lines = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+
+        for (int round = 0; round < 2; round++) { // First round is warm-up
+            boolean report = round == 1;
+            run("println", threads, lines, report, line -> System.out.println(line));
+            Log.configure(Log.Level.INFO, 1);
+            run("log", threads, lines, report, line -> Log.info(line));
+            Log.configure(Log.Level.INFO, 100);
+            run("sampled", threads, lines, report, line -> {
+                if (Log.sampleCommand()) {
+                    Log.info(line);
+                }
+            });
+            Log.configure(Log.Level.WARN, 1);
+            run("off", threads, lines, report, line -> Log.info(line));
+        }
+    }
+
+    private interface Logger {
+        void log(String line);
+    }
+
+    private static void run(String name, int threads, int lines, boolean report, Logger logger)
+            throws InterruptedException {
+        var start = new CountDownLatch(1);
+        var done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            String line = "CLIENT SAID: MESSAGE 1 subject from thread " + t + "|some content";
+            new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < lines; i++) {
+                    logger.log(line);
+                }
+                done.countDown();
+            }).start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        if (report) {
+            System.err.printf("%-8s %2d threads  %8.0f ns/line wall  %10.0f lines/s%n",
+                    name, threads, elapsed / (double) lines, (double) threads * lines * 1e9 / elapsed);
+        }
+    }
+}
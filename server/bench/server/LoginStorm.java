@@ -0,0 +1,156 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/*
+ * Reconnect storm: many clients connect and send LOGIN at the same moment, like everyone
+ * coming back after a deploy. Reports how long until every login was answered, plus
+ * per-login latency. With --duplicates every name is requested by two clients at once,
+ * so exactly half the logins must fail with ERR USERNAME_EXISTS.
+ *
+ * Runs against a separate server process (one selector thread on the client side):
+ *   java -cp out/production/server server.Main 9400 --engine=nio
+ *   java -cp out/production/server:out/bench server.LoginStorm localhost 9400 10000 [--duplicates]
+ */
+public class LoginStorm {
+    // Per-connection state: the login line still to send and the partial line being read.
+    private static class Client {
+        final int index;
+        final ByteBuffer request;
+        final StringBuilder line = new StringBuilder();
+        long sentAt;
+        boolean answered = false;
+
+        Client(int index, String username) {
+            this.index = index;
+            this.request = ByteBuffer.wrap(("LOGIN " + username + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("Usage: LoginStorm <host> <port> <clients> [--duplicates]");
+            return;
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        int count = Integer.parseInt(args[2]);
+        boolean duplicates = args.length > 3 && args[3].equals("--duplicates");
+        String run = Long.toString(System.currentTimeMillis() % 100000, 36);
+
+        long[] latencies = new long[count];
+        int ok = 0;
+        int taken = 0;
+        int other = 0;
+        int answered = 0;
+        ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+
+        try (Selector selector = Selector.open()) {
+            long started = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                String username = "storm-" + run + "-" + (duplicates ? i / 2 : i);
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                var client = new Client(i, username);
+                if (channel.connect(new InetSocketAddress(host, port))) {
+                    client.sentAt = System.nanoTime();
+                    channel.write(client.request);
+                    channel.register(selector, SelectionKey.OP_READ, client);
+                } else {
+                    channel.register(selector, SelectionKey.OP_CONNECT, client);
+                }
+            }
+
+            while (answered < count) {
+                if (selector.select(10_000) == 0) {
+                    System.out.println("Timed out with " + (count - answered) + " logins unanswered");
+                    break;
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    var client = (Client) key.attachment();
+                    var channel = (SocketChannel) key.channel();
+                    try {
+                        if (key.isConnectable()) {
+                            channel.finishConnect();
+                            client.sentAt = System.nanoTime();
+                            channel.write(client.request);
+                            key.interestOps(SelectionKey.OP_READ);
+                            continue;
+                        }
+                        readBuffer.clear();
+                        if (channel.read(readBuffer) < 0) {
+                            key.cancel();
+                            if (!client.answered) {
+                                client.answered = true;
+                                other++;
+                                answered++;
+                            }
+                            continue;
+                        }
+                        if (client.answered) {
+                            continue; // Just drain broadcasts so the server never sees a slow reader
+                        }
+                        readBuffer.flip();
+                        while (readBuffer.hasRemaining() && !client.answered) {
+                            char c = (char) readBuffer.get();
+                            if (c != '\n') {
+                                client.line.append(c);
+                                continue;
+                            }
+                            String line = client.line.toString().trim();
+                            client.line.setLength(0);
+                            if (line.equals("OK LOGIN")) {
+                                ok++;
+                            } else if (line.equals("ERR USERNAME_EXISTS")) {
+                                taken++;
+                            } else if (line.startsWith("ERR")) {
+                                other++;
+                            } else {
+                                continue; // WELCOME
+                            }
+                            client.answered = true;
+                            latencies[client.index] = System.nanoTime() - client.sentAt;
+                            answered++;
+                        }
+                    } catch (IOException e) {
+                        key.cancel();
+                        if (!client.answered) {
+                            client.answered = true;
+                            other++;
+                            answered++;
+                        }
+                    }
+                }
+            }
+            long elapsed = System.nanoTime() - started;
+
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            System.out.println("clients:     " + count + (duplicates ? " (every name requested twice)" : ""));
+            System.out.println("answered:    " + answered + " (ok " + ok + ", taken " + taken + ", failed " + other + ")");
+            System.out.printf("total:       %.0f ms (%.0f logins/s)%n", elapsed / 1e6, answered / (elapsed / 1e9));
+            System.out.printf("latency:     p50 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                    sorted[count / 2] / 1e6, sorted[(int) (count * 0.99)] / 1e6, sorted[count - 1] / 1e6);
+            if (duplicates && ok != count / 2) {
+                System.out.println("DUPLICATE NAMES ACCEPTED: expected " + (count / 2) + " successful logins");
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+        }
+    }
+}
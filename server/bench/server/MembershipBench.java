@@ -0,0 +1,126 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Membership commands on one big group:
+ *   join storm: members clients log in and JOIN one group one after another (each JOIN replies
+ *               with the USERS list and tells everyone already there)
+ *   USERS:      one member asks for the user list of the full group
+ *   disconnect: every member disconnects, one after another (each tells everyone still there)
+ * Client queues hold 64 frames and drop the oldest, so queued broadcasts don't pile up.
+ * The server also has 1000 empty groups, like a board where many groups were created.
+ * Last, the bare membership set: RAW_MEMBERS handlers join and leave a standalone group
+ * without any replies or broadcasts.
+ *
+ * Usage: java -cp out/production/server:out/bench server.MembershipBench [members...]
+ */
+public class MembershipBench {
+    private static final int USERS_ROUNDS = 2000;
+    private static final int EXTRA_GROUPS = 1000;
+    private static final int RAW_MEMBERS = 100_000;
+
+    public static void main(String[] args) {
+        int[] sizes = args.length > 0 ? new int[args.length] : new int[] {1000, 10000};
+        for (int i = 0; i < args.length; i++) {
+            sizes[i] = Integer.parseInt(args[i]);
+        }
+        var server = new Server(0);
+        Log.configure(Log.Level.WARN, 1);
+        for (int i = 0; i < EXTRA_GROUPS; i++) {
+            server.createGroup("extra-" + i);
+        }
+
+        for (int size = 0; size < sizes.length; size++) {
+            int members = sizes[size];
+            String group = Integer.toString(2 + size % 4); // A fresh group per size
+            var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long thread = Thread.currentThread().getId();
+            String run = "s" + size + "-";
+
+            List<Client> clients = new ArrayList<>();
+            long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            for (int i = 0; i < members; i++) {
+                var client = new Client(server);
+                client.handler.handleLine("LOGIN " + run + i);
+                client.handler.handleLine("JOIN " + group);
+                client.drain();
+                clients.add(client);
+            }
+            long joinNanos = System.nanoTime() - start;
+            long joinAllocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+            System.out.printf("%6d members  join storm %8.1f ms  %8.1f us/join  %9.1f KB alloc/join%n",
+                    members, joinNanos / 1e6, joinNanos / 1e3 / members, joinAllocated / 1024.0 / members);
+
+            Client asker = clients.get(members / 2);
+            for (int i = 0; i < USERS_ROUNDS / 4; i++) {
+                asker.handler.handleLine("USERS " + group);
+                asker.drain();
+            }
+            allocatedBefore = threads.getThreadAllocatedBytes(thread);
+            start = System.nanoTime();
+            long bytes = 0;
+            for (int i = 0; i < USERS_ROUNDS; i++) {
+                asker.handler.handleLine("USERS " + group);
+                bytes += asker.drain();
+            }
+            long usersNanos = System.nanoTime() - start;
+            long usersAllocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+            System.out.printf("%6d members  USERS %8.1f us/op  %9.1f KB alloc/op  reply %d B%n",
+                    members, usersNanos / 1e3 / USERS_ROUNDS, usersAllocated / 1024.0 / USERS_ROUNDS, bytes / USERS_ROUNDS);
+
+            start = System.nanoTime();
+            for (Client client : clients) {
+                client.handler.onDisconnect();
+            }
+            long leaveNanos = System.nanoTime() - start;
+            System.out.printf("%6d members  disconnect storm %8.1f ms  %8.1f us/disconnect%n",
+                    members, leaveNanos / 1e6, leaveNanos / 1e3 / members);
+        }
+
+        var group = new Group(0, "raw");
+        List<ClientHandler> handlers = new ArrayList<>();
+        for (int i = 0; i < RAW_MEMBERS; i++) {
+            var queue = new OutboundQueue(64, OutboundQueue.OverflowPolicy.DROP_OLDEST, () -> {}, () -> {});
+            handlers.add(new ClientHandler(server, queue, new InetSocketAddress(0)));
+        }
+        long start = System.nanoTime();
+        for (ClientHandler handler : handlers) {
+            group.addMember(handler);
+        }
+        long addNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (ClientHandler handler : handlers) {
+            group.removeMember(handler);
+        }
+        long removeNanos = System.nanoTime() - start;
+        System.out.printf("%6d raw members  add all %8.1f ms  remove all %8.1f ms%n",
+                RAW_MEMBERS, addNanos / 1e6, removeNanos / 1e6);
+    }
+
+    private static final class Client {
+        final OutboundQueue queue = new OutboundQueue(64, OutboundQueue.OverflowPolicy.DROP_OLDEST, () -> {}, () -> {});
+        final ClientHandler handler;
+
+        Client(Server server) {
+            handler = new ClientHandler(server, queue, new InetSocketAddress(0));
+            server.add(handler);
+        }
+
+        // Consume every queued frame in place. Returns the bytes written.
+        long drain() {
+            long bytes = 0;
+            for (ByteBuffer frame : queue.drain()) {
+                bytes += frame.remaining();
+                frame.position(frame.limit());
+            }
+            queue.finishDrain();
+            return bytes;
+        }
+    }
+}
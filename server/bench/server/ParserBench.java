@@ -0,0 +1,71 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Allocation and CPU per command line handled by ClientHandler.
+ *   string: the line is decoded to a String first (what the engines used to do)
+ *   bytes:  the received bytes go straight to the command parser
+ * Replies go to an outbound queue that is emptied every DRAIN_EVERY lines, so they barely count.
+ *
+ * Usage: java -cp out/production/server:out/bench server.ParserBench [rounds]
+ */
+public class ParserBench {
+    private static final String[] LINES = {
+        "PING",
+        "ping  ",
+        "MESSAGE 1 A typical subject line|Some message content that is about this long",
+        "MESSAGE group 1 no subject here",
+        "BOGUS command"
+    };
+    private static final int WARMUP = 200_000;
+    private static final int DRAIN_EVERY = 1024;
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        var server = new Server(0);
+        var queue = new OutboundQueue(1, OutboundQueue.OverflowPolicy.DROP_OLDEST, () -> {}, () -> {});
+        var handler = new ClientHandler(server, queue, new InetSocketAddress(0));
+        handler.handleLine("LOGIN bench");
+
+        for (String text : LINES) {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            run("string", text, rounds, queue, () -> handler.handleLine(new String(bytes, 0, bytes.length, StandardCharsets.UTF_8)));
+            run("bytes", text, rounds, queue, () -> handler.handleLine(bytes, bytes.length));
+        }
+    }
+
+    private static void run(String name, String line, int rounds, OutboundQueue queue, Runnable command) {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        for (int i = 0; i < WARMUP; i++) {
+            command.run();
+            if (i % DRAIN_EVERY == 0) {
+                drain(queue);
+            }
+        }
+
+        long bytesBefore = threads.getThreadAllocatedBytes(thread);
+        long cpuBefore = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < rounds; i++) {
+            command.run();
+            if (i % DRAIN_EVERY == 0) {
+                drain(queue);
+            }
+        }
+        long bytes = threads.getThreadAllocatedBytes(thread) - bytesBefore;
+        long cpu = threads.getCurrentThreadCpuTime() - cpuBefore;
+
+        System.out.printf("%-7s %-40.40s %8.1f bytes/line  %7.1f ns cpu/line%n",
+                name, line, bytes / (double) rounds, cpu / (double) rounds);
+    }
+
+    private static void drain(OutboundQueue queue) {
+        queue.drain();
+        queue.finishDrain();
+    }
+}
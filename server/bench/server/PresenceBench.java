@@ -0,0 +1,101 @@
+package server;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * A join storm followed by a disconnect storm on one group, with a USER_JOINED/USER_LEFT line
+ * per change (window 0) and with presence batching (--presence-window). Counts the presence
+ * lines and bytes every member was sent, and the time until the last one was queued.
+ * Client queues are big enough that nothing is dropped.
+ *
+ * Usage: java -cp out/production/server:out/bench server.PresenceBench [members] [window ms...]
+ */
+public class PresenceBench {
+    public static void main(String[] args) throws InterruptedException {
+        int members = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        List<String> windows = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            windows.add(args[i]);
+        }
+        if (windows.isEmpty()) {
+            windows.add("0");
+            windows.add("50");
+        }
+        for (String window : windows) {
+            var server = new Server(ServerConfig.parse(new String[] {"0", "--presence-window=" + window, "--log-level=warn"}));
+            long windowMillis = server.getConfig().getPresenceWindowMillis();
+
+            List<Client> clients = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < members; i++) {
+                var client = new Client(server, members);
+                client.handler.handleLine("LOGIN user" + i);
+                client.handler.handleLine("JOIN 2");
+                clients.add(client);
+            }
+            Thread.sleep(windowMillis * 2); // Let the last window go out
+            long joinNanos = System.nanoTime() - start - windowMillis * 2_000_000;
+            long[] joined = count(clients);
+
+            Client observer = clients.get(0); // Stays, to count what the others' disconnects cost it
+            start = System.nanoTime();
+            for (Client client : clients) {
+                if (client != observer) {
+                    client.handler.onDisconnect();
+                }
+            }
+            Thread.sleep(windowMillis * 2);
+            long leaveNanos = System.nanoTime() - start - windowMillis * 2_000_000;
+            long[] left = count(List.of(observer));
+
+            System.out.printf("window %4d ms  join storm %8.1f ms  %9d lines %10.1f KB   disconnect storm %8.1f ms  %6d lines %8.1f KB to the last member%n",
+                    windowMillis, joinNanos / 1e6, joined[0], joined[1] / 1024.0,
+                    leaveNanos / 1e6, left[0], left[1] / 1024.0);
+            observer.handler.onDisconnect();
+            server.stop();
+        }
+    }
+
+    // Presence lines and their bytes queued for these clients; other lines are skipped.
+    private static long[] count(List<Client> clients) {
+        long lines = 0;
+        long bytes = 0;
+        for (Client client : clients) {
+            for (ByteBuffer frame : client.queue.drain()) {
+                if (startsWith(frame, "USER_") || startsWith(frame, "USERS_DELTA")) {
+                    lines++;
+                    bytes += frame.remaining();
+                }
+                frame.position(frame.limit());
+            }
+            client.queue.finishDrain();
+        }
+        return new long[] {lines, bytes};
+    }
+
+    private static boolean startsWith(ByteBuffer frame, String prefix) {
+        if (frame.remaining() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (frame.get(frame.position() + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Client {
+        final OutboundQueue queue;
+        final ClientHandler handler;
+
+        Client(Server server, int members) {
+            queue = new OutboundQueue(members * 2 + 64, OutboundQueue.OverflowPolicy.DROP_OLDEST, () -> {}, () -> {});
+            handler = new ClientHandler(server, queue, new InetSocketAddress(0));
+            server.add(handler);
+        }
+    }
+}
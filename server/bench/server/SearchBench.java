@@ -0,0 +1,98 @@
+package server;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/*
+ * SEARCH over one big group: the indexed search against scanning every message.
+ * Messages use a 5000-word vocabulary with Zipf-like frequencies, so there are very common
+ * words ("w0") and rare ones ("w4000"). Also prints the post cost and heap the index adds.
+ *
+ * Usage: java -Xmx4g -cp out/production/server:out/bench server.SearchBench [messages]
+ */
+public class SearchBench {
+    private static final int VOCABULARY = 5000;
+    private static final int LIMIT = 100;
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        var random = new Random(1);
+        String[] words = new String[VOCABULARY];
+        double[] cumulative = new double[VOCABULARY];
+        double total = 0;
+        for (int i = 0; i < VOCABULARY; i++) {
+            words[i] = "w" + i;
+            total += 1.0 / (i + 1);
+            cumulative[i] = total;
+        }
+        Message[] messages = new Message[count];
+        for (int i = 0; i < count; i++) {
+            messages[i] = new Message("user" + (i % 100), text(random, words, cumulative, total, 4),
+                    text(random, words, cumulative, total, 20));
+        }
+
+        long heapBefore = usedHeap();
+        var group = new Group(1, "bench");
+        long start = System.nanoTime();
+        for (Message message : messages) {
+            group.addMessage(message);
+        }
+        long addNanos = System.nanoTime() - start;
+        long heapAfter = usedHeap();
+        System.out.printf(Locale.ROOT, "%d messages: %.0f ns per addMessage, log + index %.1f MB%n",
+                count, addNanos / (double) count, (heapAfter - heapBefore) / 1e6);
+
+        for (String query : new String[] {"w4000", "w50", "w0", "w10 w20", "w3 w4000", "w4998 w4999", "w0 w1 w2"}) {
+            run(group, query);
+        }
+    }
+
+    private static void run(Group group, String query) {
+        int rounds = 20;
+        List<Message> indexed = null;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            indexed = group.search(query, LIMIT);
+        }
+        double indexedMs = (System.nanoTime() - start) / 1e6 / rounds;
+
+        start = System.nanoTime();
+        int scanned = scan(group, query);
+        double scanMs = (System.nanoTime() - start) / 1e6;
+        System.out.printf(Locale.ROOT, "%-10s indexed %8.3f ms (%3d results)   scan %8.1f ms (%d results)%n",
+                query, indexedMs, indexed.size(), scanMs, Math.min(scanned, LIMIT));
+    }
+
+    // What SEARCH would cost without the index: check every message, newest first.
+    private static int scan(Group group, String query) {
+        List<String> terms = SearchIndex.words(query);
+        List<Message> messages = group.getMessages();
+        int found = 0;
+        for (int i = messages.size() - 1; i >= 0 && found < LIMIT; i--) {
+            Message message = messages.get(i);
+            List<String> words = SearchIndex.words(message.getSubject() + " " + message.getContent());
+            if (words.containsAll(terms)) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private static String text(Random random, String[] words, double[] cumulative, double total, int length) {
+        var text = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            int index = java.util.Arrays.binarySearch(cumulative, random.nextDouble() * total);
+            text.append(i == 0 ? "" : " ").append(words[index >= 0 ? index : -index - 1]);
+        }
+        return text.toString();
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
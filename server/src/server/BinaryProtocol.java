@@ -0,0 +1,248 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * Frame format of the binary protocol mode (see PROTOCOL.md, "Binary Mode").
+ *
+ * A client switches to it by sending BINARY before LOGIN. From then on both directions use
+ * frames instead of lines: a varint body length, then the body, which starts with a one-byte
+ * opcode. Numbers are unsigned LEB128 varints and strings are a varint byte count followed by
+ * UTF-8, so content needs no delimiters or escaping.
+ *
+ * A body longer than MAX_FRAME_LENGTH (a MESSAGES reply with many bodies, USERS of a huge
+ * group) is cut into FRAGMENT frames and a LAST_FRAGMENT frame, which the client joins back.
+ *
+ * Only the high-volume commands have their own opcodes. Every other command (and every reply
+ * without an opcode of its own) travels as a TEXT frame holding the usual protocol line, so
+ * both modes share one set of command semantics.
+ */
+public final class BinaryProtocol {
+    // Client -> server
+    public static final int TEXT = 0x01;        // <utf8 line>, handled exactly like a text line
+    public static final int MESSAGE = 0x02;     // <tag> <group_id> <subject> <content>
+    public static final int GET_MESSAGE = 0x03; // <tag> <id>
+    public static final int GET_MESSAGES = 0x04; // <tag> <count> <id>...
+    public static final int PING = 0x05;        // <tag>
+
+    // Server -> client (TEXT is shared)
+    public static final int OK_MESSAGE = 0x81;  // <tag> <id>
+    public static final int CONTENT = 0x82;     // <tag> <id> <content>
+    public static final int MESSAGES = 0x83;    // <tag> <count> then <id> <found> [<content>] per id
+    public static final int PONG = 0x84;        // <tag>
+    public static final int NEW_MESSAGE = 0x85; // <group_id> <id> <post_millis> <sender> <subject>
+    public static final int FRAGMENT = 0x86;    // <bytes>: a piece of a body too long for one frame
+    public static final int LAST_FRAGMENT = 0x87; // <bytes>: its last piece
+
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+    private static final int MAX_PREFIX = 5; // Varint bytes needed for any int
+
+    private BinaryProtocol() {
+    }
+
+    // A TEXT frame holding one protocol line.
+    public static ByteBuffer text(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        return new FrameWriter(1 + bytes.length).opcode(TEXT).putBytes(bytes, 0, bytes.length).finish();
+    }
+
+    // The TEXT frame for an encoded text-mode line (see OutboundQueue.encode()), with prefix
+    // (may be null) in front of it. The line separator is dropped.
+    public static ByteBuffer text(String prefix, ByteBuffer lineFrame) {
+        ByteBuffer line = lineFrame.duplicate();
+        int end = line.limit();
+        while (end > line.position() && (line.get(end - 1) == '\n' || line.get(end - 1) == '\r')) {
+            end--;
+        }
+        line.limit(end);
+        byte[] head = prefix == null ? new byte[0] : prefix.getBytes(StandardCharsets.UTF_8);
+        FrameWriter frame = new FrameWriter(1 + head.length + line.remaining()).opcode(TEXT).putBytes(head, 0, head.length);
+        int count = line.remaining();
+        frame.ensure(count);
+        line.get(frame.bytes, frame.length, count);
+        frame.length += count;
+        return frame.finish();
+    }
+
+    // NEW_MESSAGE broadcast for a message posted to groupId. Shared by every binary member.
+    public static ByteBuffer newMessage(int groupId, Message message) {
+        byte[] sender = message.getSender().getBytes(StandardCharsets.UTF_8);
+        byte[] subject = message.getSubject().getBytes(StandardCharsets.UTF_8);
+        return new FrameWriter(32 + sender.length + subject.length).opcode(NEW_MESSAGE)
+                .putVarint(groupId).putVarint(message.getId()).putVarint(message.getPostMillis())
+                .putString(sender).putString(subject).finish();
+    }
+
+    public static ByteBuffer okMessage(long tag, int id) {
+        return new FrameWriter(16).opcode(OK_MESSAGE).putVarint(tag).putVarint(id).finish();
+    }
+
+    public static ByteBuffer content(long tag, int id, String content) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        return new FrameWriter(24 + bytes.length).opcode(CONTENT).putVarint(tag).putVarint(id).putString(bytes).finish();
+    }
+
+    public static ByteBuffer pong(long tag) {
+        return new FrameWriter(11).opcode(PONG).putVarint(tag).finish();
+    }
+
+    // The body at [start, end) as FRAGMENT frames of consecutive pieces and a LAST_FRAGMENT frame
+    // with the rest, all in one buffer, so no frame is longer than MAX_FRAME_LENGTH.
+    static ByteBuffer fragments(byte[] body, int start, int end) {
+        int piece = MAX_FRAME_LENGTH - 1;
+        int pieces = (end - start + piece - 1) / piece;
+        ByteBuffer frames = ByteBuffer.allocate(end - start + pieces * (MAX_PREFIX + 1));
+        for (int offset = start; offset < end; offset += piece) {
+            int count = Math.min(piece, end - offset);
+            int value = count + 1;
+            while ((value & ~0x7f) != 0) {
+                frames.put((byte) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            frames.put((byte) value);
+            frames.put((byte) (offset + count < end ? FRAGMENT : LAST_FRAGMENT));
+            frames.put(body, offset, count);
+        }
+        return frames.flip().asReadOnlyBuffer();
+    }
+
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /*
+     * Builds one frame with a single allocation: the body is written after room for the longest
+     * length prefix, and finish() writes the real prefix just in front of the body.
+     */
+    static final class FrameWriter {
+        private byte[] bytes;
+        private int length = MAX_PREFIX;
+
+        FrameWriter(int bodyCapacity) {
+            bytes = new byte[MAX_PREFIX + bodyCapacity];
+        }
+
+        FrameWriter opcode(int opcode) {
+            ensure(1);
+            bytes[length++] = (byte) opcode;
+            return this;
+        }
+
+        FrameWriter putVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                bytes[length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+            return this;
+        }
+
+        FrameWriter putString(byte[] utf8) {
+            putVarint(utf8.length);
+            return putBytes(utf8, 0, utf8.length);
+        }
+
+        FrameWriter putString(String value) {
+            return putString(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        FrameWriter putBytes(byte[] source, int offset, int count) {
+            ensure(count);
+            System.arraycopy(source, offset, bytes, length, count);
+            length += count;
+            return this;
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+
+        ByteBuffer finish() {
+            int body = length - MAX_PREFIX;
+            if (body > MAX_FRAME_LENGTH) {
+                return fragments(bytes, MAX_PREFIX, length);
+            }
+            int start = MAX_PREFIX - varintSize(body);
+            int position = start;
+            int value = body;
+            while ((value & ~0x7f) != 0) {
+                bytes[position++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[position] = (byte) value;
+            return ByteBuffer.wrap(bytes, start, length - start).asReadOnlyBuffer();
+        }
+    }
+
+    /*
+     * Reads the fields of one received frame body. A field running past the end of the frame
+     * throws IllegalArgumentException; the handler answers that with ERR INVALID_FORMAT.
+     */
+    static final class FrameReader {
+        private final byte[] bytes;
+        private int position;
+        private final int end;
+
+        FrameReader(byte[] bytes, int position, int end) {
+            this.bytes = bytes;
+            this.position = position;
+            this.end = end;
+        }
+
+        int readByte() {
+            if (position >= end) {
+                throw new IllegalArgumentException("Frame too short");
+            }
+            return bytes[position++] & 0xff;
+        }
+
+        long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Varint too long");
+        }
+
+        // A varint that has to fit in an int (ids, counts, lengths).
+        int readInt() {
+            long value = readVarint();
+            if (value < 0 || value > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Number out of range");
+            }
+            return (int) value;
+        }
+
+        String readString() {
+            int count = readInt();
+            if (count > end - position) {
+                throw new IllegalArgumentException("String runs past the frame");
+            }
+            String value = new String(bytes, position, count, StandardCharsets.UTF_8);
+            position += count;
+            return value;
+        }
+
+        int position() {
+            return position;
+        }
+
+        boolean hasRemaining() {
+            return position < end;
+        }
+    }
+}
@@ -1,23 +1,75 @@
 package server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 public class ClientHandler implements Runnable {
-    private final Socket socket; // The client socket.
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_GROUP_NAME_LENGTH = 64;
+    private static final int MAX_GROUPS_PAGE = 1000;
+    private static final int MAX_HISTORY_PAGE = 1000;
+    private static final int MAX_GET_MESSAGES = 1000;
+    private static final int MAX_SEARCH_RESULTS = 100;
+    private static final int MAX_USERS_PAGE = 1000;
+
+    // Replies sent on the hottest paths, encoded once.
+    private static final ByteBuffer PONG = OutboundQueue.encode("PONG");
+    private static final ByteBuffer OK_MESSAGE = OutboundQueue.encode("OK MESSAGE");
+    private static final ByteBuffer ERR_UNKNOWN_COMMAND = OutboundQueue.encode("ERR UNKNOWN_COMMAND");
+    private static final ByteBuffer BINARY_PONG = BinaryProtocol.pong(0);
+
+    private final Socket socket; // The client socket. Null when driven by the NIO engine.
     private final Server server;
-    private PrintWriter out;
-    public String username; // Set upon LOGIN call
-    private final List<Group> joinedGroups = new ArrayList<>();
+    private final SocketAddress remoteAddress;
+    private final OutboundQueue outbound; // Everything sent to this client goes through here
+    private OutputStream socketOut;
+    public volatile String username; // Set upon LOGIN call
+    private final List<Group> joinedGroups = new ArrayList<>(); // Only changed by the thread handling this client
+    private final CommandParser parser = new CommandParser();
+    private final LineBuffer line = new LineBuffer(); // Text mode input
+    private FrameBuffer frames = null; // Binary mode input; set (by the reading thread) on BINARY
+    private volatile boolean binary = false; // Replies and broadcasts are sent as binary frames
+    private String replyTag = null; // Tag of the request being handled ("#17"), echoed on its replies
+    private final NioConnection connection; // Null on the blocking engine
+    private boolean waiting = false; // NIO engine: a command waits for another node; input is held until it is done
+    private byte[] heldInput = null; // What the client sent after that command
 
     public ClientHandler(Socket socket,  Server server) {
         this.socket = socket;
+        this.connection = null;
         this.server = server;
+        this.remoteAddress = socket.getRemoteSocketAddress();
+        ServerConfig config = server.getConfig();
+        this.outbound = new OutboundQueue(config.getOutboundCapacity(), config.getOverflowPolicy(),
+                () -> server.getWriterExecutor().execute(this::drainToSocket),
+                this::disconnectSlowClient);
+    }
+
+    // Used by the NIO engine. There is no socket or thread; the engine feeds received bytes into
+    // receive() and its event loop drains the outbound queue into the channel.
+    ClientHandler(Server server, OutboundQueue outbound, SocketAddress remoteAddress, NioConnection connection) {
+        this.socket = null;
+        this.connection = connection;
+        this.server = server;
+        this.outbound = outbound;
+        this.remoteAddress = remoteAddress;
+    }
+
+    // Without a connection (benches and checks) commands that go to another node just wait.
+    ClientHandler(Server server, OutboundQueue outbound, SocketAddress remoteAddress) {
+        this(server, outbound, remoteAddress, null);
     }
 
     /*
@@ -27,95 +79,346 @@ public class ClientHandler implements Runnable {
      */
     @Override
     public void run() {
-        System.out.println("Thread handling: " + socket.getRemoteSocketAddress());
+        Log.info("Thread handling: " + socket.getRemoteSocketAddress());
 
         try (
-            // Initialize a reader to received text lines from the client.
-            var in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            // Initialize a writer to send text lines back to the client.
-            var writer = new PrintWriter(socket.getOutputStream(), true)
+            // Raw bytes from the client; receive() splits them into lines or frames.
+            var in = socket.getInputStream()
         ) {
-            this.out = writer;
+            // Replies are written by the outbound queue's writer, not by this thread.
+            this.socketOut = socket.getOutputStream();
 
-            out.println("WELCOME");
+            onConnect();
 
-            String line;
+            byte[] chunk = new byte[READ_BUFFER_SIZE];
+            int n;
+            boolean quit = false;
             // Continuously attempt read lines from the client until client disconnects.
-            while ((line = in.readLine()) != null) {
-                System.out.println("CLIENT SAID: " + line);
-
-                // If handleLine returns true, the client should exit.
-                if (handleLine(line)) {
-                    break;
-                }
+            while (!quit && (n = in.read(chunk)) > 0) {
+                quit = receive(chunk, 0, n);
+                // Don't take more commands while the client is not reading our replies.
+                outbound.awaitReplyRoom();
+            }
+            if (!quit) {
+                quit = receiveEnd();
+            }
+            if (quit) {
+                // Let the writer send BYE before the socket goes away.
+                outbound.awaitDrained(1000);
             }
         } catch (Exception e) {
-            System.err.println("Client error: " + e.getMessage());
+            Log.error("Client error: " + e.getMessage());
         } finally {
-            // Tell the server the client is gone
-            server.remove(this);
+            outbound.close();
             try { socket.close(); } catch (IOException ignored) {} // Ignore exception here. It's closing anyway.
-            System.out.println("Client closed: " + socket.getRemoteSocketAddress());
+            onDisconnect();
+        }
+    }
+
+    // Writer task for the blocking engine: sends everything queued in one write per batch.
+    private void drainToSocket() {
+        try {
+            do {
+                List<ByteBuffer> batch = outbound.drain();
+                if (!batch.isEmpty()) {
+                    socketOut.write(OutboundQueue.coalesce(batch));
+                    socketOut.flush();
+                }
+            } while (!outbound.finishDrain());
+        } catch (IOException e) {
+            // The reader thread notices the broken socket and cleans up.
+            outbound.close();
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // DISCONNECT overflow policy: the client stopped reading, so drop the connection.
+    // Closing the socket makes the blocked read fail and run() does the usual cleanup.
+    private void disconnectSlowClient() {
+        Log.warn("Disconnecting slow client: " + remoteAddress);
+        try { socket.close(); } catch (IOException ignored) {}
+    }
+
+    // Handle the bytes at data[offset, end): every line (or frame, in binary mode) they complete.
+    // Returns true when the client should be disconnected; the rest of the bytes are ignored then.
+    boolean receive(byte[] data, int offset, int end) {
+        while (offset < end) {
+            if (waiting) {
+                // The connection stops reading meanwhile; resumeInput() handles the rest later.
+                heldInput = Arrays.copyOfRange(data, offset, end);
+                return false;
+            }
+            if (frames != null) {
+                offset = frames.add(data, offset, end);
+                if (offset < 0) {
+                    Log.warn("Bad frame from " + remoteAddress);
+                    send("ERR INVALID_FRAME");
+                    return true;
+                }
+                if (frames.isComplete() && receiveFrame()) {
+                    return true;
+                }
+            } else if (line.add(data[offset++]) && receiveLine()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // NIO engine, on the loop: the command that waited is done, so handle what came after it.
+    // Returns true when the client should be disconnected.
+    boolean resumeInput() {
+        byte[] input = heldInput;
+        heldInput = null;
+        return input != null && receive(input, 0, input.length);
+    }
+
+    boolean isWaiting() {
+        return waiting;
+    }
+
+    // The client closed its side. A last line without a line ending still counts, like readLine().
+    boolean receiveEnd() {
+        return frames == null && line.length() > 0 && receiveLine();
+    }
+
+    // Log and handle one complete line.
+    private boolean receiveLine() {
+        if (Log.sampleCommand()) {
+            Log.info("CLIENT SAID: " + new String(line.bytes(), 0, line.length(), StandardCharsets.UTF_8));
+        }
+        boolean quit = handleLine(line.bytes(), 0, line.length());
+        line.clear();
+        return quit;
+    }
+
+    // Log and handle one complete frame. A TEXT frame is an ordinary protocol line.
+    private boolean receiveFrame() {
+        byte[] body = frames.bytes();
+        int length = frames.length();
+        boolean quit = false;
+        if (length > 0 && (body[0] & 0xff) == BinaryProtocol.TEXT) {
+            if (Log.sampleCommand()) {
+                Log.info("CLIENT SAID: " + new String(body, 1, length - 1, StandardCharsets.UTF_8));
+            }
+            quit = handleLine(body, 1, length);
+        } else if (length > 0) {
+            if (Log.sampleCommand()) {
+                Log.info("CLIENT SAID: binary opcode " + (body[0] & 0xff) + ", " + length + " bytes");
+            }
+            handleFrame(body, length);
+        }
+        frames.clear();
+        return quit;
+    }
+
+    // Greet a newly connected client.
+    void onConnect() {
+        send("WELCOME");
+    }
+
+    // The groups this client is in. Read by Server.remove() once the client's input has ended.
+    List<Group> getJoinedGroups() {
+        return joinedGroups;
+    }
+
+    // Tell the server the client is gone.
+    void onDisconnect() {
+        server.remove(this);
+        Log.info("Client closed: " + remoteAddress);
+    }
+
+    // Text protocol handler for a line that is already a String. Returns true when the
+    // client should be disconnected.
+    boolean handleLine(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        return handleLine(bytes, 0, bytes.length);
+    }
+
+    boolean handleLine(byte[] line, int length) {
+        return handleLine(line, 0, length);
+    }
+
+    // Text protocol handler working directly on the received bytes at [start, end)
+    // (no trim/split/toUpperCase). Returns true when the client should be disconnected.
+    boolean handleLine(byte[] line, int start, int end) {
+        CommandParser.Command command = parser.parse(line, start, end);
+        if (command == CommandParser.Command.EMPTY) {
+            return false;
+        }
+
+        long startNanos = System.nanoTime();
+        replyTag = parser.hasTag() ? parser.tag() : null;
+        try {
+            return dispatch(command);
+        } catch (ClusterException | UncheckedIOException e) {
+            sendFailure(e);
+            return false;
+        } finally {
+            replyTag = null;
+            server.getMetrics().recordCommand(command, System.nanoTime() - startNanos);
+        }
+    }
+
+    // Binary protocol handler for the commands with an opcode of their own (everything else
+    // comes as a TEXT frame and goes through handleLine()). Fields are read straight from the
+    // frame; replies use the same checks and errors as the text commands.
+    private void handleFrame(byte[] body, int length) {
+        int opcode = body[0] & 0xff;
+        CommandParser.Command command;
+        switch (opcode) {
+            case BinaryProtocol.MESSAGE: command = CommandParser.Command.MESSAGE; break;
+            case BinaryProtocol.GET_MESSAGE: command = CommandParser.Command.GET_MESSAGE; break;
+            case BinaryProtocol.GET_MESSAGES: command = CommandParser.Command.GET_MESSAGES; break;
+            case BinaryProtocol.PING: command = CommandParser.Command.PING; break;
+            default:
+                reply(ERR_UNKNOWN_COMMAND);
+                return;
+        }
+
+        long startNanos = System.nanoTime();
+        var frame = new BinaryProtocol.FrameReader(body, 1, length);
+        try {
+            long tag = frame.readVarint(); // 0 = untagged
+            replyTag = tag == 0 ? null : "#" + tag;
+            switch (command) {
+                case MESSAGE:
+                    handleBinaryPost(tag, frame);
+                    break;
+                case GET_MESSAGE:
+                    handleBinaryGetMessage(tag, frame);
+                    break;
+                case GET_MESSAGES:
+                    handleBinaryGetMessages(tag, frame);
+                    break;
+                default:
+                    outbound.offerReply(tag == 0 ? BINARY_PONG.duplicate() : BinaryProtocol.pong(tag));
+                    break;
+            }
+        } catch (IllegalArgumentException e) {
+            send("ERR INVALID_FORMAT " + e.getMessage());
+        } catch (ClusterException | UncheckedIOException e) {
+            sendFailure(e);
+        } finally {
+            replyTag = null;
+            server.getMetrics().recordCommand(command, System.nanoTime() - startNanos);
         }
     }
 
-    // Text protocol handler
-    private boolean handleLine(String line) {
-        line = line.trim();
-        if (line.isEmpty()) return false;
+    // Another node did not answer, or the content store failed. The client may retry.
+    private void sendFailure(RuntimeException e) {
+        if (e instanceof ClusterException) {
+            Log.warn("Cluster error: " + e.getMessage());
+            send("ERR CLUSTER_UNAVAILABLE");
+        } else {
+            Log.error("Content store error: " + e.getMessage());
+            send("ERR STORAGE_UNAVAILABLE");
+        }
+    }
 
-        // Preprocessing for consistency 
-        String[] parts = line.split(" ", 2);
-        String cmd = parts[0].toUpperCase().trim();
-        String arg = (parts.length > 1) ? parts[1] : "";
+    // Finish a command once the step that may go to another node of the cluster is done. The
+    // blocking engine waits for it on the client's thread. The NIO engine must not hold up its
+    // event loop: the connection stops reading, and the loop runs the rest of the command when
+    // the reply is in, then the commands sent after it, so replies keep their order.
+    private <T> void whenDone(CompletableFuture<T> result, Consumer<T> rest) {
+        if (connection == null || result.isDone()) {
+            rest.accept(Cluster.await(result));
+            return;
+        }
+        waiting = true;
+        String tag = replyTag;
+        result.whenComplete((value, e) -> connection.resume(() -> {
+            replyTag = tag;
+            try {
+                rest.accept(Cluster.await(result));
+            } catch (ClusterException | UncheckedIOException failure) {
+                sendFailure(failure);
+            } finally {
+                replyTag = null;
+                waiting = false;
+            }
+        }));
+    }
 
-        switch (cmd) {
-            case "LOGIN":
-                handleLogin(arg);
+    private boolean dispatch(CommandParser.Command command) {
+        switch (command) {
+            case LOGIN:
+                handleLogin(parser.arg());
                 return false;
             
-            case "JOIN":
-                handleJoin(arg);
+            case JOIN:
+                handleJoin(parser.arg());
+                return false;
+
+            case MESSAGE:
+                handlePost();
+                return false;
+
+            case GET_MESSAGE:
+                handleGetMessage();
                 return false;
 
-            case "MESSAGE":
-                handlePost(arg);
+            case GET_MESSAGES:
+                handleGetMessages();
                 return false;
 
-            case "GET_MESSAGE":
-                handleGetMessage(arg);
+            case HISTORY:
+                handleHistory(parser.arg());
                 return false;
             
-            case "USERS":
-                handleUsers(arg);
+            case SEARCH:
+                handleSearch(parser.arg());
+                return false;
+
+            case USERS:
+                handleUsers(parser.arg());
                 return false;
                 
-            case "GROUPS":
-                out.println("GROUPS " + getGroupListString());
+            case GROUPS:
+                handleGroups(parser.arg());
+                return false;
+
+            case CREATE_GROUP:
+                handleCreateGroup(parser.arg());
+                return false;
+
+            case DELETE_GROUP:
+                handleDeleteGroup(parser.arg());
                 return false;
                 
-            case "LEAVE":
-                handleLeave(arg);
+            case LEAVE:
+                handleLeave(parser.arg());
+                return false;
+
+            case PING:
+                reply(PONG);
+                return false;
+
+            case STATS:
+                handleStats();
+                return false;
+
+            case BINARY:
+                handleBinary();
                 return false;
 
-            case "PING":
-                out.println("PONG");
+            case COMPRESS:
+                handleCompress();
                 return false;
 
-            case "QUIT":
-                out.println("BYE");
+            case QUIT:
+                send("BYE");
                 return true;
 
             default:
-                out.println("ERR UNKNOWN_COMMAND");
+                reply(ERR_UNKNOWN_COMMAND);
                 return false;
         }
     }
 
     private void handleLogin(String usernameArg) {
         if (usernameArg == null || usernameArg.trim().isEmpty()) {
-            out.println("ERR INVALID_USERNAME");
+            send("ERR INVALID_USERNAME");
             return;
         }
 
@@ -123,26 +426,27 @@ public class ClientHandler implements Runnable {
 
         // If already logged in, reject the login attempt
         if (this.username != null) {
-            out.println("ERR ALREADY_LOGGED_IN");
+            send("ERR ALREADY_LOGGED_IN");
             return;
         }
 
-        // Check if username already exists (by another user)
-        if (server.usernameExists(requestedUsername)) {
-            out.println("ERR USERNAME_EXISTS");
-            return;
-        }
+        // Claim the username; fails if another user already has it
+        whenDone(server.reserveUsername(requestedUsername, this), reserved -> {
+            if (!reserved) {
+                send("ERR USERNAME_EXISTS");
+                return;
+            }
 
-        // Set username
-        this.username = requestedUsername;
-        out.println("OK LOGIN");
-        
-        // Automatically join the first group
-        List<Group> groups = server.getGroups();
-        if (!groups.isEmpty()) {
-            Group firstGroup = groups.get(0);
-            joinGroup(firstGroup);
-        }
+            // Set username
+            this.username = requestedUsername;
+            send("OK LOGIN");
+
+            // Automatically join the first group
+            Group firstGroup = server.getDefaultGroup();
+            if (firstGroup != null) {
+                joinGroup(firstGroup);
+            }
+        });
     }
     
     private void handleJoin(String arg) {
@@ -152,7 +456,7 @@ public class ClientHandler implements Runnable {
         }
         
         if (group.hasMember(this)) {
-            out.println("ERR ALREADY_JOINED");
+            send("ERR ALREADY_JOINED");
             return;
         }
         
@@ -160,30 +464,27 @@ public class ClientHandler implements Runnable {
     }
     
     private void joinGroup(Group group) {
-        group.addMember(this);
+        if (!group.addMember(this)) {
+            send("ERR GROUP_NOT_FOUND"); // Deleted since it was looked up
+            return;
+        }
         joinedGroups.add(group);
-        out.println("OK JOIN " + group.getName());
+        send("OK JOIN " + group.getName());
         
         // Send user list
-        var usernames = group.getUsernames();
-        usernames.remove(this.username);
-        
-        if (!usernames.isEmpty()) {
-            out.println("USERS " + group.getId() + " " + String.join(",", usernames));
-        } else {
-            out.println("USERS " + group.getId());
-        }
+        sendFrame(group.getUsernameView().usersLine(tagged("USERS " + group.getId()), username));
 
         // Send last 2 messages
         var lastMessages = group.getLastMessages(2);
         if (!lastMessages.isEmpty()) {
             for (Message msg : lastMessages) {
-                out.println("MESSAGE_SUMMARY " + group.getId() + " " + msg.toSummaryString());
+                sendFrame(msg.summaryFrame(tagged("MESSAGE_SUMMARY " + group.getId() + " ")));
             }
         }
 
-        // Notify other clients
-        group.broadcast("USER_JOINED " + group.getId() + " " + username, this);
+        // Notify other clients, here and on the other nodes of a cluster
+        server.announceJoin(group, username, this);
+        server.memberJoined(group, this);
     }
     
     private void handleLeave(String arg) {
@@ -194,127 +495,506 @@ public class ClientHandler implements Runnable {
         
         group.removeMember(this);
         joinedGroups.remove(group);
-        out.println("OK LEAVE " + group.getName());
-        group.broadcast("USER_LEFT " + group.getId() + " " + username, this);
+        send("OK LEAVE " + group.getName());
+        server.announceLeave(group, username, this);
+        server.memberLeft(group, this);
     }
 
-    private void handlePost(String arg) {
+    private void handlePost() {
         // Expect: <group_id> <subject>|<content>
-        String[] parts = arg.split(" ", 2);
-        if (parts.length < 2) {
-            out.println("ERR INVALID_FORMAT Use: MESSAGE <group_id> <content>");
+        int start = parser.argStart();
+        int end = parser.argEnd();
+        int space = parser.indexOf(' ', start, end);
+        if (space < 0) {
+            send("ERR INVALID_FORMAT Use: MESSAGE <group_id> <content>");
             return;
         }
-        
-        String groupIdStr = parts[0];
-        String messageBody = parts[1];
-        
-        Group group = validateAndGetGroup(groupIdStr, true);
+
+        Group group = validateAndGetGroup(start, space, true);
         if (group == null) {
             return;
         }
 
         // Parse message: format is "SUBJECT|CONTENT" or just "CONTENT" (subject defaults to empty)
+        int bodyStart = space + 1;
+        int bar = parser.indexOf('|', bodyStart, end);
         String subject = "";
-        String content = messageBody;
+        String content;
+        if (bar >= 0) {
+            subject = parser.trimmedText(bodyStart, bar);
+            content = parser.trimmedText(bar + 1, end);
+        } else {
+            content = parser.text(bodyStart, end);
+        }
 
-        if (messageBody.contains("|")) {
-            String[] msgParts = messageBody.split("\\|", 2);
-            subject = msgParts[0].trim();
-            content = msgParts.length > 1 ? msgParts[1].trim() : "";
+        whenDone(post(group, subject, content), message -> reply(OK_MESSAGE));
+    }
+
+    // MESSAGE frame: <group_id> <subject> <content>. Nothing needs escaping, but text clients
+    // get the same message in lines, so it can't contain line breaks.
+    private void handleBinaryPost(long tag, BinaryProtocol.FrameReader frame) {
+        int groupId = frame.readInt();
+        String subject = frame.readString();
+        String content = frame.readString();
+
+        Group group = validateAndGetGroup(groupId, true);
+        if (group == null) {
+            return;
+        }
+        if (hasLineBreak(subject) || hasLineBreak(content)) {
+            send("ERR INVALID_FORMAT Line breaks are not allowed");
+            return;
         }
 
-        // Create and store message
-        Message message = new Message(username, subject.isEmpty() ? "(no subject)" : subject, content);
-        group.addMessage(message);
+        whenDone(post(group, subject, content), message -> outbound.offerReply(BinaryProtocol.okMessage(tag, message.getId())));
+    }
+
+    private static boolean hasLineBreak(String text) {
+        return text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0;
+    }
 
-        // Broadcast message summary to all other clients in the group
-        group.broadcast("NEW_MESSAGE " + group.getId() + " " + message.toSummaryString(), this);
-        out.println("OK MESSAGE");
+    // Create and store a message; the server broadcasts its summary to all other clients in the group.
+    private CompletableFuture<Message> post(Group group, String subject, String content) {
+        return server.postAsync(group, username, this, subject.isEmpty() ? "(no subject)" : subject, content);
     }
     
+    // Bodies of many messages in one round trip: MESSAGES <count>, then one line per requested id.
+    private void handleGetMessages() {
+        if (username == null) {
+            send("ERR NOT_LOGGED_IN");
+            return;
+        }
+
+        // Parse every id first so a bad list gets one error instead of a partial reply.
+        int start = parser.argStart();
+        int end = parser.argEnd();
+        int[] ids = new int[Math.min(MAX_GET_MESSAGES + 1, end - start + 1)];
+        int count = 0;
+        while (start < end) {
+            int comma = parser.indexOf(',', start, end);
+            int idEnd = comma < 0 ? end : comma;
+            int id = parser.parseId(start, idEnd);
+            if (id < 0) {
+                send("ERR INVALID_MESSAGE_ID");
+                return;
+            }
+            if (count == MAX_GET_MESSAGES) {
+                send("ERR INVALID_FORMAT At most " + MAX_GET_MESSAGES + " ids");
+                return;
+            }
+            ids[count++] = id;
+            start = comma < 0 ? end : comma + 1;
+        }
+        if (count == 0) {
+            send("ERR INVALID_FORMAT Use: GET_MESSAGES <id>,<id>,...");
+            return;
+        }
+
+        String[] contents = loadContents(ids, count);
+        List<ByteBuffer> reply = new ArrayList<>(count + 1);
+        reply.add(line("MESSAGES " + count));
+        for (int i = 0; i < count; i++) {
+            reply.add(line(contents[i] != null ? "CONTENT " + ids[i] + " " + contents[i] : "NOT_FOUND " + ids[i]));
+        }
+        outbound.offerReply(OutboundQueue.join(reply));
+    }
+
+    // GET_MESSAGES frame: <count> <id>..., answered with a single MESSAGES frame.
+    private void handleBinaryGetMessages(long tag, BinaryProtocol.FrameReader frame) {
+        int count = frame.readInt();
+        if (count == 0 || count > MAX_GET_MESSAGES) {
+            send("ERR INVALID_FORMAT 1 to " + MAX_GET_MESSAGES + " ids");
+            return;
+        }
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = frame.readInt();
+        }
+        if (username == null) {
+            send("ERR NOT_LOGGED_IN");
+            return;
+        }
+
+        String[] contents = loadContents(ids, count);
+        var messages = new BinaryProtocol.FrameWriter(16 + count * 64)
+                .opcode(BinaryProtocol.MESSAGES).putVarint(tag).putVarint(count);
+        for (int i = 0; i < count; i++) {
+            messages.putVarint(ids[i]).putVarint(contents[i] != null ? 1 : 0);
+            if (contents[i] != null) {
+                messages.putString(contents[i]);
+            }
+        }
+        outbound.offerReply(messages.finish());
+    }
+
+    // The bodies of the first count ids, null where not found. Every body is read before any of
+    // the reply is queued: if the content store fails (UncheckedIOException), the client gets
+    // ERR STORAGE_UNAVAILABLE alone, never a MESSAGES header with fewer entries than it promised.
+    private String[] loadContents(int[] ids, int count) {
+        String[] contents = new String[count];
+        for (int i = 0; i < count; i++) {
+            Message message = findVisibleMessage(ids[i]);
+            contents[i] = message != null ? message.getContent() : null;
+        }
+        return contents;
+    }
+
+    // Page backwards through a group's history: HISTORY <group_id> <count>, then <count> summaries.
+    private void handleHistory(String arg) {
+        String[] parts = arg.trim().split("\\s+");
+        if (parts.length != 3) {
+            send("ERR INVALID_FORMAT Use: HISTORY <group_id> <before_id> <limit>");
+            return;
+        }
+        int beforeId = GroupRegistry.parseId(parts[1]);
+        int limit = GroupRegistry.parseId(parts[2]);
+        if (beforeId < 0 || limit <= 0) {
+            send("ERR INVALID_FORMAT Use: HISTORY <group_id> <before_id> <limit>");
+            return;
+        }
+
+        Group group = validateAndGetGroup(parts[0], true);
+        if (group == null) {
+            return;
+        }
+
+        List<Message> page = group.getMessagesBefore(beforeId, Math.min(limit, MAX_HISTORY_PAGE));
+        sendCounted("HISTORY " + group.getId() + " " + page.size(), group, page);
+    }
+
+    // Find messages by words in their subject or content: SEARCH <group_id> <count>, then
+    // <count> summaries of the newest matches, oldest first. Only groups the user has joined.
+    private void handleSearch(String arg) {
+        String[] parts = arg.trim().split("\\s+", 2);
+        if (parts.length != 2) {
+            send("ERR INVALID_FORMAT Use: SEARCH <group_id> <words>");
+            return;
+        }
+
+        Group group = validateAndGetGroup(parts[0], true);
+        if (group == null) {
+            return;
+        }
+
+        List<Message> found = group.search(parts[1], MAX_SEARCH_RESULTS);
+        sendCounted("SEARCH " + group.getId() + " " + found.size(), group, found);
+    }
+
+    // A header line and a summary line per message, queued as one frame: a whole page only
+    // takes one place in the outbound queue.
+    private void sendCounted(String header, Group group, List<Message> messages) {
+        List<ByteBuffer> reply = new ArrayList<>(messages.size() + 1);
+        reply.add(line(header));
+        String prefix = tagged("MESSAGE_SUMMARY " + group.getId() + " ");
+        for (Message msg : messages) {
+            reply.add(encoded(msg.summaryFrame(prefix)));
+        }
+        outbound.offerReply(OutboundQueue.join(reply));
+    }
+
+    // Server counters and timings, one line per item, ended by STATS_END. Queued as one frame,
+    // however many groups there are.
+    private void handleStats() {
+        Metrics metrics = server.getMetrics();
+        List<ByteBuffer> reply = new ArrayList<>();
+        reply.add(line("STATS clients=" + metrics.getConnectedClients() + " users=" + metrics.getLoggedInUsers()
+                + " groups=" + metrics.getGroupCount() + " messages=" + metrics.getMessageCount()));
+        for (Map.Entry<CommandParser.Command, LatencyHistogram> entry : metrics.getAllCommandTimes().entrySet()) {
+            if (entry.getValue().getCount() > 0) {
+                reply.add(line("STATS_COMMAND " + entry.getKey() + " " + formatLatency(entry.getValue())));
+            }
+        }
+        reply.add(line("STATS_BROADCAST " + formatLatency(metrics.getFanoutTimes())));
+        ContentStore store = server.getContentStore();
+        if (store != null) {
+            reply.add(line("STATS_CONTENT cache_hits=" + store.getHits() + " cache_misses=" + store.getMisses()
+                    + " file_bytes=" + store.getFileSize()));
+        }
+        for (Group group : server.getGroups()) {
+            reply.add(line("STATS_GROUP " + group.getId() + " members=" + group.getMemberCount()
+                    + " messages=" + group.getMessages().size()));
+        }
+        reply.add(line("STATS_END"));
+        outbound.offerReply(OutboundQueue.join(reply));
+    }
+
+    private static String formatLatency(LatencyHistogram histogram) {
+        return String.format(Locale.ROOT, "count=%d mean_us=%.1f p50_us=%.1f p99_us=%.1f p999_us=%.1f max_us=%.1f",
+                histogram.getCount(), histogram.getMeanMicros(), histogram.getP50Micros(),
+                histogram.getP99Micros(), histogram.getP999Micros(), histogram.getMaxMicros());
+    }
+
     private void handleUsers(String arg) {
+        // Paged form: USERS <group_id> <offset> <limit> (unless that whole text names a group)
+        String[] parts = arg.trim().split("\\s+");
+        if (parts.length == 3 && server.getGroup(arg.trim()) == null) {
+            int offset = GroupRegistry.parseId(parts[1]);
+            int limit = GroupRegistry.parseId(parts[2]);
+            if (offset < 0 || limit <= 0) {
+                send("ERR INVALID_FORMAT Use: USERS <group_id> [<offset> <limit>]");
+                return;
+            }
+            Group group = validateAndGetGroup(parts[0], true);
+            if (group != null) {
+                sendFrame(group.getUsernameView().usersPage(tagged("USERS_PAGE " + group.getId()), username,
+                        offset, Math.min(limit, MAX_USERS_PAGE)));
+            }
+            return;
+        }
+
         Group group = validateAndGetGroup(arg, true);
         if (group == null) {
             return;
         }
         
-        var usernames = group.getUsernames();
-        usernames.remove(this.username); // Exclude self
-         
-        if (!usernames.isEmpty()) {
-            out.println("USERS " + group.getId() + " " + String.join(",", usernames));
-        } else {
-            out.println("USERS " + group.getId());
+        // Every member but self, from the group's cached list
+        sendFrame(group.getUsernameView().usersLine(tagged("USERS " + group.getId()), username));
+    }
+
+    private void handleGroups(String arg) {
+        arg = arg.trim();
+        if (arg.isEmpty()) {
+            send("GROUPS " + getGroupListString(server.getGroups()));
+            return;
         }
+
+        // Paged form: GROUPS <after_id> <limit>
+        String[] parts = arg.split("\\s+");
+        int afterId = parts.length == 2 ? GroupRegistry.parseId(parts[0]) : -1;
+        int limit = parts.length == 2 ? GroupRegistry.parseId(parts[1]) : -1;
+        if (afterId < 0 || limit <= 0) {
+            send("ERR INVALID_FORMAT Use: GROUPS [<after_id> <limit>]");
+            return;
+        }
+        send("GROUPS " + getGroupListString(server.getGroups(afterId, Math.min(limit, MAX_GROUPS_PAGE))));
     }
 
-    private void handleGetMessage(String arg) {
+    private void handleCreateGroup(String arg) {
         if (username == null) {
-            out.println("ERR NOT_LOGGED_IN");
+            send("ERR NOT_LOGGED_IN");
             return;
         }
 
-        try {
-            int messageId = Integer.parseInt(arg.trim());
-            Message message = server.getMessageById(messageId);
-
-            if (message == null) {
-                out.println("ERR MESSAGE_NOT_FOUND");
-            } else {
-                // Check access: User must be in the group that has this message
-                boolean hasAccess = false;
-                for (Group g : joinedGroups) {
-                    if (g.getMessages().contains(message)) {
-                        hasAccess = true;
-                        break;
-                    }
-                }
-                
-                if (hasAccess) {
-                    out.println(message.getContent());
-                } else {
-                    out.println("ERR MESSAGE_NOT_FOUND");
-                }
+        // Names show up in "id:name,..." lists and must not look like an id.
+        String name = arg.trim();
+        if (name.isEmpty() || name.length() > MAX_GROUP_NAME_LENGTH || name.contains(",") || name.contains(":")
+                || GroupRegistry.parseId(name) >= 0) {
+            send("ERR INVALID_GROUP_NAME");
+            return;
+        }
+
+        whenDone(server.createGroupAsync(name), group -> {
+            if (group == null) {
+                send("ERR GROUP_EXISTS");
+                return;
             }
-        } catch (NumberFormatException e) {
-            out.println("ERR INVALID_MESSAGE_ID");
+            send("OK CREATE_GROUP " + group.getId() + " " + group.getName());
+        });
+    }
+
+    private void handleDeleteGroup(String arg) {
+        Group group = validateAndGetGroup(arg, false);
+        if (group == null) {
+            return;
+        }
+
+        if (server.isBuiltIn(group)) {
+            send("ERR GROUP_PROTECTED");
+            return;
+        }
+
+        // Only empty groups (or groups where the caller is the last member) can be deleted.
+        // Closing checks that and stops joins in one step, so no JOIN lands in a deleted group.
+        if (!group.close(this)) {
+            send("ERR GROUP_NOT_EMPTY");
+            return;
+        }
+        if (group.hasMember(this)) {
+            group.removeMember(this);
+            joinedGroups.remove(group);
+            server.memberLeft(group, this);
+        }
+
+        CompletableFuture<Void> deleted = server.deleteGroupAsync(group).whenComplete((done, e) -> {
+            if (e != null) {
+                group.reopen();
+            }
+        });
+        whenDone(deleted, done -> send("OK DELETE_GROUP " + group.getName()));
+    }
+
+    private void handleGetMessage() {
+        if (username == null) {
+            send("ERR NOT_LOGGED_IN");
+            return;
+        }
+
+        int messageId = parser.parseId(parser.argStart(), parser.argEnd());
+        if (messageId < 0) {
+            // Integer.parseInt also took a sign; keep those answering as before.
+            try {
+                messageId = Integer.parseInt(parser.trimmedText(parser.argStart(), parser.argEnd()));
+            } catch (NumberFormatException e) {
+                send("ERR INVALID_MESSAGE_ID");
+                return;
+            }
+        }
+        Message message = findVisibleMessage(messageId);
+        if (message != null) {
+            String content = message.getContent(); // May throw; nothing is queued until it's read
+            send(content);
+        } else {
+            send("ERR MESSAGE_NOT_FOUND");
         }
     }
 
+    // GET_MESSAGE frame: <id>, answered with a CONTENT frame.
+    private void handleBinaryGetMessage(long tag, BinaryProtocol.FrameReader frame) {
+        int messageId = frame.readInt();
+        if (username == null) {
+            send("ERR NOT_LOGGED_IN");
+            return;
+        }
+
+        Message message = findVisibleMessage(messageId);
+        if (message != null) {
+            String content = message.getContent(); // As in handleGetMessage
+            outbound.offerReply(BinaryProtocol.content(tag, messageId, content));
+        } else {
+            send("ERR MESSAGE_NOT_FOUND");
+        }
+    }
+
+    // The message with this id, or null if there is none or it is in a group the user hasn't joined.
+    private Message findVisibleMessage(int messageId) {
+        MessageIndex.Entry entry = server.findMessage(messageId);
+        return entry != null && joinedGroups.contains(entry.getGroup()) ? entry.getMessage() : null;
+    }
+
+    // Deflate everything sent to this client after the OK COMPRESS reply. The writer compresses
+    // whole batches (see StreamCompressor), so broadcasts queued meanwhile are safe either side.
+    private void handleCompress() {
+        String ok = tagged("OK COMPRESS");
+        ByteBuffer frame = binary ? BinaryProtocol.text(ok) : OutboundQueue.encode(ok);
+        if (!outbound.offerThenCompress(frame, server.getConfig().getCompressLevel())) {
+            send("ERR ALREADY_COMPRESSED");
+        }
+    }
+
+    // Switch this connection to binary frames (see BinaryProtocol). Only allowed before LOGIN:
+    // the client is in no group yet, so no broadcast can be queued as a line after OK BINARY.
+    private void handleBinary() {
+        if (frames != null) {
+            send("ERR ALREADY_BINARY");
+            return;
+        }
+        if (username != null) {
+            send("ERR ALREADY_LOGGED_IN");
+            return;
+        }
+
+        send("OK BINARY");
+        frames = new FrameBuffer();
+        if (line.expectsLineFeed()) {
+            frames.skipLineFeed();
+        }
+        binary = true;
+    }
+
     /**
      * Validates user is logged in, group exists, and optionally checks membership.
      */
     private Group validateAndGetGroup(String groupIdentifier, boolean requireMembership) {
         if (username == null) {
-            out.println("ERR NOT_LOGGED_IN");
+            send("ERR NOT_LOGGED_IN");
             return null;
         }
         
-        Group group = server.getGroup(groupIdentifier.trim());
+        return checkGroup(server.getGroup(groupIdentifier.trim()), requireMembership);
+    }
+
+    // Same as above for a group id or name at [start, end) of the current line.
+    private Group validateAndGetGroup(int start, int end, boolean requireMembership) {
+        if (username == null) {
+            send("ERR NOT_LOGGED_IN");
+            return null;
+        }
+
+        int id = parser.parseId(start, end);
+        Group group = id >= 0 ? server.getGroup(id) : server.getGroup(parser.trimmedText(start, end));
+        return checkGroup(group, requireMembership);
+    }
+
+    // Same as above for a group id read from a binary frame.
+    private Group validateAndGetGroup(int groupId, boolean requireMembership) {
+        if (username == null) {
+            send("ERR NOT_LOGGED_IN");
+            return null;
+        }
+
+        return checkGroup(server.getGroup(groupId), requireMembership);
+    }
+
+    private Group checkGroup(Group group, boolean requireMembership) {
         if (group == null) {
-            out.println("ERR GROUP_NOT_FOUND");
+            send("ERR GROUP_NOT_FOUND");
             return null;
         }
         
         if (requireMembership && !group.hasMember(this)) {
-            out.println("ERR NOT_MEMBER");
+            send("ERR NOT_MEMBER");
             return null;
         }
         
         return group;
     }
 
-    // Called by Server.broadcast() or Group.broadcast()
+    // Send one line to this client. While a tagged request is being handled the line is a
+    // reply to it and gets the tag in front.
     public void send(String message) {
-        if (out != null) {
-            out.println(message);
+        outbound.offerReply(line(message));
+    }
+
+    // The frame send() queues for a line.
+    private ByteBuffer line(String message) {
+        String line = tagged(message);
+        return binary ? BinaryProtocol.text(line) : OutboundQueue.encode(line);
+    }
+
+    // Send a pre-encoded reply, adding the request tag if there is one.
+    private void reply(ByteBuffer frame) {
+        if (binary) {
+            outbound.offerReply(BinaryProtocol.text(replyTag == null ? null : replyTag + " ", frame));
+        } else if (replyTag == null) {
+            outbound.offerReply(frame.duplicate());
+        } else {
+            outbound.offerReply(OutboundQueue.prepend(replyTag + " ", frame));
         }
     }
+
+    private String tagged(String line) {
+        return replyTag == null ? line : replyTag + " " + line;
+    }
+
+    // Send an encoded line as it is (any tag is already in it).
+    private void sendFrame(ByteBuffer frame) {
+        outbound.offerReply(encoded(frame));
+    }
+
+    // The frame sendFrame() queues for an encoded line.
+    private ByteBuffer encoded(ByteBuffer frame) {
+        return binary ? BinaryProtocol.text(null, frame) : frame.duplicate();
+    }
+
+    // Called by Group.broadcast() with frames that are shared by every member (never tagged):
+    // the encoded line, and the same broadcast as a binary frame.
+    public void sendFrame(ByteBuffer frame, ByteBuffer binaryFrame) {
+        outbound.offer((binary ? binaryFrame : frame).duplicate());
+    }
     
-    private String getGroupListString() {
+    private String getGroupListString(Iterable<Group> groups) {
         StringBuilder sb = new StringBuilder();
-        for (Group g : server.getGroups()) {
+        for (Group g : groups) {
             sb.append(g.getId()).append(":").append(g.getName()).append(",");
         }
         if (sb.length() > 0) sb.setLength(sb.length() - 1);
@@ -0,0 +1,382 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Several server processes acting as one board (started with --cluster and --node-id).
+ *
+ * Every node keeps a full copy of every group and its history, so reads (USERS, HISTORY,
+ * GET_MESSAGE, GROUPS) are answered locally. Writes are sharded with a consistent hash ring
+ * (HashRing) over the node ids:
+ *   - "group:<id>" names the node that sequences posts to that group. It gives the message its
+ *     id, stores it and replicates it to every other node, which broadcast it to their own members.
+ *   - "user:<name>" names the node that decides which login gets a username.
+ *   - "groups" names the node that creates and deletes groups.
+ * Joins and leaves are relayed to every node, so USERS and USER_JOINED/USER_LEFT cover clients
+ * on all nodes. Message ids are striped by node (see Message.stripeIds()) so owners never clash.
+ *
+ * Nodes talk over plain TCP: each node has one outgoing PeerLink to every other node and
+ * accepts their links on its own cluster port. An event is a list of strings (Cluster.write()).
+ * A write owned by another node is a request/reply round trip: the request returns a future
+ * that the link's reader completes with the reply, or that fails with ClusterException after
+ * RPC_TIMEOUT_MILLIS. Client threads of the blocking engine wait on it; the NIO engine finishes
+ * the command from the future instead of holding up its event loop. The owner always
+ * replicates the result before it replies, so the requesting node already has the new message
+ * or group when the reply arrives.
+ *
+ * When a node's link goes down its users and group members are dropped on the other nodes;
+ * its link resends them when it comes back. Messages posted while a node was down are not
+ * copied to it afterwards, and the set of nodes is fixed at startup.
+ */
+public class Cluster {
+    private static final long RPC_TIMEOUT_MILLIS = 2000;
+    private static final int MAX_FIELDS = 16;
+    private static final int MAX_FIELD_LENGTH = 1 << 20;
+
+    private final Server server;
+    private final int nodeId;
+    private final InetSocketAddress listenAddress;
+    private final HashRing ring;
+    private final Map<Integer, PeerLink> links = new TreeMap<>(); // Other nodes by id
+    private final ConcurrentHashMap<Long, CompletableFuture<String[]>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequest = new AtomicLong();
+    // Usernames this node decides on (lowercase) -> node id of the client holding it.
+    private final ConcurrentHashMap<String, Integer> claims = new ConcurrentHashMap<>();
+
+    public Cluster(Server server, int nodeId, Map<Integer, InetSocketAddress> nodes) {
+        this.server = server;
+        this.nodeId = nodeId;
+        this.listenAddress = nodes.get(nodeId);
+        this.ring = new HashRing(nodes.keySet());
+        List<Integer> ids = new ArrayList<>(new TreeMap<>(nodes).keySet());
+        Message.stripeIds(ids.size(), ids.indexOf(nodeId));
+        for (Map.Entry<Integer, InetSocketAddress> node : nodes.entrySet()) {
+            if (node.getKey() != nodeId) {
+                links.put(node.getKey(), new PeerLink(this, node.getKey(), node.getValue()));
+            }
+        }
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    // Accept links from the other nodes and start connecting to them.
+    public void start() throws IOException {
+        var serverSocket = new ServerSocket(listenAddress.getPort(), Server.ACCEPT_BACKLOG);
+        var acceptor = new Thread(() -> acceptLinks(serverSocket), "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (PeerLink link : links.values()) {
+            var t = new Thread(link, "cluster-link-" + link.getPeerId());
+            t.setDaemon(true);
+            t.start();
+        }
+        Log.info("Cluster node " + nodeId + " listening on port " + listenAddress.getPort()
+                + " (" + (links.size() + 1) + " nodes)");
+    }
+
+    public boolean ownsGroup(Group group) {
+        return ring.owner("group:" + group.getId()) == nodeId;
+    }
+
+    public boolean ownsGroupRegistry() {
+        return ring.owner("groups") == nodeId;
+    }
+
+    /* Called on client threads */
+
+    // Ask the owner of the name whether this node's client may have it.
+    public CompletableFuture<Boolean> claimUsername(String username) {
+        String key = userKey(username);
+        int owner = ring.owner("user:" + key);
+        if (owner == nodeId) {
+            return CompletableFuture.completedFuture(claims.putIfAbsent(key, nodeId) == null);
+        }
+        return call(owner, "CLAIM", key).thenApply(reply -> reply[1].equals("1"));
+    }
+
+    public void releaseUsername(String username) {
+        String key = userKey(username);
+        int owner = ring.owner("user:" + key);
+        if (owner == nodeId) {
+            claims.remove(key, nodeId);
+        } else {
+            links.get(owner).send("RELEASE", key);
+        }
+    }
+
+    // Have the group's owner post the message. Returns the id it got.
+    public CompletableFuture<Integer> forwardPost(Group group, String sender, String subject, String content) {
+        int owner = ring.owner("group:" + group.getId());
+        return call(owner, "POST", Integer.toString(group.getId()), sender, subject, content).thenApply(reply -> {
+            if (reply[1].isEmpty()) {
+                throw new ClusterException("Node " + owner + " has no group " + group.getId());
+            }
+            return Integer.parseInt(reply[1]);
+        });
+    }
+
+    // The owner sends every message it sequenced to all other nodes.
+    public void replicateMessage(Group group, Message message) {
+        sendAll("MSG", Integer.toString(group.getId()), Integer.toString(message.getId()), message.getSender(),
+                Long.toString(message.getPostMillis()), message.getSubject(), message.getContent());
+    }
+
+    public void memberJoined(Group group, String username) {
+        sendAll("JOINED", Integer.toString(group.getId()), username);
+    }
+
+    public void memberLeft(Group group, String username) {
+        sendAll("LEFT", Integer.toString(group.getId()), username);
+    }
+
+    // Have the registry node create the group. Returns its id, or 0 if the name is taken.
+    public CompletableFuture<Integer> forwardCreateGroup(String name) {
+        return call(ring.owner("groups"), "CREATE", name).thenApply(reply -> Integer.parseInt(reply[1]));
+    }
+
+    // Have the registry node delete the group.
+    public CompletableFuture<Void> forwardDeleteGroup(Group group) {
+        return call(ring.owner("groups"), "DELETE", Integer.toString(group.getId())).thenAccept(reply -> {});
+    }
+
+    public void groupCreated(Group group) {
+        sendAll("GROUP", Integer.toString(group.getId()), group.getName());
+    }
+
+    public void groupDeleted(Group group) {
+        sendAll("UNGROUP", Integer.toString(group.getId()));
+    }
+
+    /* Links */
+
+    // What a link sends first after (re)connecting: the groups (from the registry node), this
+    // node's logged in users and their memberships.
+    List<String[]> snapshot() {
+        List<String[]> events = new ArrayList<>();
+        if (ownsGroupRegistry()) {
+            for (Group group : server.getGroups()) {
+                events.add(new String[] {"GROUP", Integer.toString(group.getId()), group.getName()});
+            }
+        }
+        for (ClientHandler client : server.getClients()) {
+            String username = client.username;
+            if (username != null) {
+                events.add(new String[] {"ASSERT", userKey(username)});
+            }
+        }
+        for (Group group : server.getGroups()) {
+            for (ClientHandler member : group.getMembers()) {
+                String username = member.username;
+                if (username != null) {
+                    events.add(new String[] {"JOINED", Integer.toString(group.getId()), username});
+                }
+            }
+        }
+        return events;
+    }
+
+    private void acceptLinks(ServerSocket serverSocket) {
+        while (true) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                var t = new Thread(() -> readLink(socket), "cluster-reader");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                Log.error("Cluster accept error: " + e.getMessage());
+            }
+        }
+    }
+
+    // Handle everything one peer sends until its link closes, then forget its users.
+    private void readLink(Socket socket) {
+        int peer = -1;
+        try (socket; var in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            String[] hello = read(in);
+            peer = hello.length == 2 && hello[0].equals("HELLO") ? Integer.parseInt(hello[1]) : -1;
+            if (!links.containsKey(peer)) {
+                Log.warn("Cluster link from unknown node: " + socket.getRemoteSocketAddress());
+                return;
+            }
+            while (true) {
+                handle(peer, read(in));
+            }
+        } catch (EOFException e) {
+            // Peer closed the link
+        } catch (IOException | RuntimeException e) {
+            Log.warn("Cluster link from node " + peer + " failed: " + e.getMessage());
+        }
+        if (links.containsKey(peer)) {
+            peerDown(peer);
+        }
+    }
+
+    private void handle(int peer, String[] event) {
+        switch (event[0]) {
+            case "REPLY": {
+                CompletableFuture<String[]> reply = pending.remove(Long.parseLong(event[1]));
+                if (reply != null) {
+                    reply.complete(Arrays.copyOfRange(event, 1, event.length));
+                }
+                break;
+            }
+            case "CLAIM":
+                reply(peer, event[1], claims.putIfAbsent(event[2], peer) == null ? "1" : "0");
+                break;
+            case "ASSERT":
+                claims.putIfAbsent(event[1], peer);
+                break;
+            case "RELEASE":
+                claims.remove(event[1], peer);
+                break;
+            case "POST": {
+                Group group = server.getGroup(Integer.parseInt(event[2]));
+                String id = "";
+                if (group != null) {
+                    id = Integer.toString(server.post(group, event[3], null, event[4], event[5]).getId());
+                }
+                reply(peer, event[1], id);
+                break;
+            }
+            case "MSG":
+                server.applyRemoteMessage(Integer.parseInt(event[1]), new Message(Integer.parseInt(event[2]),
+                        event[3], Long.parseLong(event[4]), event[5], event[6]));
+                break;
+            case "JOINED":
+                server.applyRemoteJoin(Integer.parseInt(event[1]), event[2], peer);
+                break;
+            case "LEFT":
+                server.applyRemoteLeave(Integer.parseInt(event[1]), event[2], peer);
+                break;
+            case "CREATE": {
+                Group group = server.createGroup(event[2]);
+                reply(peer, event[1], group != null ? Integer.toString(group.getId()) : "0");
+                break;
+            }
+            case "DELETE": {
+                Group group = server.getGroup(Integer.parseInt(event[2]));
+                if (group != null) {
+                    server.deleteGroup(group);
+                }
+                reply(peer, event[1], "");
+                break;
+            }
+            case "GROUP":
+                server.applyGroupCreated(Integer.parseInt(event[1]), event[2]);
+                break;
+            case "UNGROUP":
+                server.applyGroupDeleted(Integer.parseInt(event[1]));
+                break;
+            default:
+                Log.warn("Unknown cluster event from node " + peer + ": " + event[0]);
+                break;
+        }
+    }
+
+    private void peerDown(int peer) {
+        claims.values().removeIf(holder -> holder == peer);
+        server.removeRemoteMembers(peer);
+        Log.warn("Cluster node " + peer + " left; its users were removed");
+    }
+
+    // Send a request to a node. The future completes with its REPLY's fields, the request id
+    // first, or fails with ClusterException if there is none in time. Nothing waits here.
+    private CompletableFuture<String[]> call(int node, String op, String... args) {
+        PeerLink link = links.get(node);
+        if (!link.isConnected()) {
+            return CompletableFuture.failedFuture(new ClusterException("Node " + node + " is not connected"));
+        }
+        long id = nextRequest.incrementAndGet();
+        var reply = new CompletableFuture<String[]>();
+        pending.put(id, reply);
+        String[] fields = new String[args.length + 2];
+        fields[0] = op;
+        fields[1] = Long.toString(id);
+        System.arraycopy(args, 0, fields, 2, args.length);
+        link.send(fields);
+        return reply.orTimeout(RPC_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).handle((result, e) -> {
+            pending.remove(id);
+            if (e != null) {
+                throw new ClusterException("No reply from node " + node + " to " + op);
+            }
+            return result;
+        });
+    }
+
+    // Wait for a round trip (or a command built on one). Its failure is thrown as it was raised,
+    // normally a ClusterException.
+    static <T> T await(CompletableFuture<T> result) {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ClusterException(e.getCause().getMessage());
+        }
+    }
+
+    private void reply(int peer, String requestId, String value) {
+        links.get(peer).send("REPLY", requestId, value);
+    }
+
+    private void sendAll(String... fields) {
+        for (PeerLink link : links.values()) {
+            link.send(fields);
+        }
+    }
+
+    private static String userKey(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    // One event: the field count, then each field as a byte count and UTF-8.
+    static void write(DataOutputStream out, String... fields) throws IOException {
+        out.writeInt(fields.length);
+        for (String field : fields) {
+            byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    static String[] read(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count <= 0 || count > MAX_FIELDS) {
+            throw new IOException("Bad field count " + count);
+        }
+        String[] fields = new String[count];
+        for (int i = 0; i < count; i++) {
+            int length = in.readInt();
+            if (length < 0 || length > MAX_FIELD_LENGTH) {
+                throw new IOException("Bad field length " + length);
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            fields[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return fields;
+    }
+}
@@ -0,0 +1,11 @@
+package server;
+
+// A command needed another node of the cluster and it could not be reached in time.
+// Clients get ERR CLUSTER_UNAVAILABLE and may retry.
+public class ClusterException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public ClusterException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,200 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Splits a raw protocol line into command and argument without allocating.
+ * The command word is matched case-insensitively against a table built once from Command,
+ * so dispatch needs no toUpperCase(), split() or String switch. Arguments stay as offsets
+ * into the line and are only turned into Strings by the handlers that need one.
+ *
+ * Same rules as the old String parser: the line is trimmed, the command ends at the first
+ * space, and the argument is everything after that space.
+ * A line may start with a request tag ("#17 GET_MESSAGE 42"): '#' and 1 to 32 non-space
+ * characters, then a space. The tag is kept (as offsets) so the handler can echo it.
+ * One parser per client; the parsed offsets are valid until the next parse().
+ */
+public class CommandParser {
+    public enum Command {
+        LOGIN, JOIN, MESSAGE, GET_MESSAGE, GET_MESSAGES, HISTORY, SEARCH, USERS, GROUPS, CREATE_GROUP, DELETE_GROUP, LEAVE, PING, STATS, BINARY, COMPRESS, QUIT,
+        EMPTY,  // Blank line, ignored
+        UNKNOWN // Anything else
+    }
+
+    private static final int MAX_TAG_LENGTH = 32;
+    private static final int TABLE_SIZE = 64; // Power of two, comfortably larger than the command count
+    private static final Command[] TABLE = new Command[TABLE_SIZE];
+    private static final byte[][] NAMES = new byte[TABLE_SIZE][];
+
+    static {
+        for (Command command : Command.values()) {
+            if (command == Command.EMPTY || command == Command.UNKNOWN) {
+                continue;
+            }
+            byte[] name = command.name().getBytes(StandardCharsets.US_ASCII);
+            int slot = hash(name, 0, name.length) & (TABLE_SIZE - 1);
+            while (TABLE[slot] != null) {
+                slot = (slot + 1) & (TABLE_SIZE - 1);
+            }
+            TABLE[slot] = command;
+            NAMES[slot] = name;
+        }
+    }
+
+    private byte[] line;
+    private int argStart;
+    private int argEnd;
+    private int tagStart; // '#' of the request tag; tagStart == tagEnd when there is none
+    private int tagEnd;
+
+    public Command parse(byte[] line, int length) {
+        return parse(line, 0, length);
+    }
+
+    // Parse the line at [start, end) of the array.
+    public Command parse(byte[] line, int start, int end) {
+        this.line = line;
+        while (start < end && (line[start] & 0xff) <= ' ') {
+            start++;
+        }
+        while (end > start && (line[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        tagStart = tagEnd = start;
+        if (start == end) {
+            argStart = argEnd = end;
+            return Command.EMPTY;
+        }
+
+        if (line[start] == '#') {
+            int tagSpace = indexOf(' ', start, end);
+            int tagLength = (tagSpace < 0 ? end : tagSpace) - start - 1;
+            if (tagLength < 1 || tagLength > MAX_TAG_LENGTH || tagSpace < 0) {
+                // A bad or lone tag can't be echoed; answer it like any unknown command.
+                argStart = argEnd = end;
+                return Command.UNKNOWN;
+            }
+            tagEnd = tagSpace;
+            start = tagSpace + 1;
+            while (start < end && (line[start] & 0xff) <= ' ') {
+                start++;
+            }
+        }
+
+        int space = indexOf(' ', start, end);
+        int commandEnd = space < 0 ? end : space;
+        argStart = space < 0 ? end : space + 1;
+        argEnd = end;
+
+        // The old parser trimmed the command word too (it can end in a tab).
+        while (commandEnd > start && (line[commandEnd - 1] & 0xff) <= ' ') {
+            commandEnd--;
+        }
+        return lookup(line, start, commandEnd);
+    }
+
+    private static Command lookup(byte[] bytes, int start, int end) {
+        int slot = hash(bytes, start, end) & (TABLE_SIZE - 1);
+        while (TABLE[slot] != null) {
+            if (equalsIgnoreCase(NAMES[slot], bytes, start, end)) {
+                return TABLE[slot];
+            }
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        return Command.UNKNOWN;
+    }
+
+    // Hash of the upper-cased ASCII bytes.
+    private static int hash(byte[] bytes, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + upper(bytes[i]);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equalsIgnoreCase(byte[] name, byte[] bytes, int start, int end) {
+        if (name.length != end - start) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (name[i] != upper(bytes[start + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte upper(byte b) {
+        return (b >= 'a' && b <= 'z') ? (byte) (b - 32) : b;
+    }
+
+    // Position of c in [from, to) of the current line, or -1.
+    public int indexOf(char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (line[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean hasTag() {
+        return tagEnd > tagStart;
+    }
+
+    // The request tag including its '#', e.g. "#17". Only call when hasTag().
+    public String tag() {
+        return text(tagStart, tagEnd);
+    }
+
+    public int argStart() {
+        return argStart;
+    }
+
+    public int argEnd() {
+        return argEnd;
+    }
+
+    // The whole argument as a String (allocates; for the less frequent commands).
+    public String arg() {
+        return text(argStart, argEnd);
+    }
+
+    public String text(int start, int end) {
+        return new String(line, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    // Like text(start, end).trim().
+    public String trimmedText(int start, int end) {
+        while (start < end && (line[start] & 0xff) <= ' ') {
+            start++;
+        }
+        while (end > start && (line[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        return text(start, end);
+    }
+
+    // Digits in [start, end) (surrounding whitespace allowed) as a non-negative int, or -1.
+    public int parseId(int start, int end) {
+        while (start < end && (line[start] & 0xff) <= ' ') {
+            start++;
+        }
+        while (end > start && (line[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        if (start == end || end - start > 9) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            byte b = line[i];
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+}
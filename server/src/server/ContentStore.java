@@ -0,0 +1,123 @@
+package server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Message bodies kept on disk instead of the heap (--content-store). Clients mostly see
+ * summaries and only fetch a body now and then with GET_MESSAGE, so a Message keeps its
+ * summary and hands its content to the store once it has been posted (Message.moveContent()).
+ *
+ * Bodies are appended as UTF-8 to one file and read back with positional reads, which any
+ * number of threads can do at once. In front of the file is an LRU cache of recently posted or
+ * read bodies, bounded in bytes, so heap use follows the bodies in use rather than the
+ * whole history.
+ *
+ * The file is not a journal: it is emptied on startup (the journal, if any, replays the
+ * messages into it again) and only grows while the server runs; bodies of deleted groups stay
+ * in it until the next restart.
+ */
+public class ContentStore implements AutoCloseable {
+    private static final String FILE_NAME = "content.dat";
+
+    private final FileChannel channel;
+    private final long cacheCapacity; // Bytes of cached bodies, counted as 2 per char
+    private long end = 0; // Where the next body goes. Guarded by this
+    private final LinkedHashMap<Integer, String> cache = new LinkedHashMap<>(16, 0.75f, true); // Guarded by itself
+    private long cachedBytes = 0; // Guarded by cache
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public ContentStore(Path directory, long cacheCapacity) throws IOException {
+        Files.createDirectories(directory);
+        this.channel = FileChannel.open(directory.resolve(FILE_NAME), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.cacheCapacity = cacheCapacity;
+    }
+
+    // Append a message's body and cache it (new posts are the ones most likely read).
+    // Returns where it starts in the file; its length is its UTF-8 byte count.
+    public long store(int messageId, String content, byte[] utf8) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(utf8);
+        long position;
+        synchronized (this) {
+            position = end;
+            end += utf8.length;
+        }
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+        cache(messageId, content);
+        return position;
+    }
+
+    // The body stored at position, from the cache or else from the file.
+    public String load(int messageId, long position, int length) {
+        String content;
+        synchronized (cache) {
+            content = cache.get(messageId);
+        }
+        if (content != null) {
+            hits.incrementAndGet();
+            return content;
+        }
+        misses.incrementAndGet();
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Content of message " + messageId + " is cut short");
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read content of message " + messageId + ": " + e.getMessage(), e);
+        }
+        content = new String(buffer.array(), StandardCharsets.UTF_8);
+        cache(messageId, content);
+        return content;
+    }
+
+    private void cache(int messageId, String content) {
+        long size = 2L * content.length();
+        if (size > cacheCapacity) {
+            return;
+        }
+        synchronized (cache) {
+            String previous = cache.put(messageId, content);
+            cachedBytes += size - (previous != null ? 2L * previous.length() : 0);
+            // Evict the least recently used bodies until the new one fits.
+            Iterator<Map.Entry<Integer, String>> oldest = cache.entrySet().iterator();
+            while (cachedBytes > cacheCapacity && oldest.hasNext()) {
+                cachedBytes -= 2L * oldest.next().getValue().length();
+                oldest.remove();
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized long getFileSize() {
+        return end;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,78 @@
+package server;
+
+import java.util.Arrays;
+
+/*
+ * Collects incoming bytes into binary protocol frames, the binary-mode counterpart of LineBuffer.
+ * A frame is a varint body length followed by the body. Bodies are copied in bulk rather than
+ * scanned for a delimiter.
+ */
+public class FrameBuffer {
+    private byte[] bytes = new byte[256];
+    private int length = 0;    // Body bytes received so far
+    private int expected = -1; // Body length, or -1 while the length prefix is still being read
+    private int prefix = 0;    // Length prefix decoded so far
+    private int prefixShift = 0;
+    private boolean skipLineFeed = false; // The line that switched to binary mode ended with '\r'
+
+    // Add bytes from data[offset, end) until a frame is complete. Returns the offset of the first
+    // byte not taken. When isComplete() is true, read the body with bytes()/length(), then clear().
+    // Returns -1 if the length prefix is malformed or larger than BinaryProtocol.MAX_FRAME_LENGTH.
+    public int add(byte[] data, int offset, int end) {
+        if (skipLineFeed && offset < end) {
+            skipLineFeed = false;
+            if (data[offset] == '\n') {
+                offset++;
+            }
+        }
+        while (expected < 0) {
+            if (offset == end) {
+                return offset;
+            }
+            int b = data[offset++] & 0xff;
+            prefix |= (b & 0x7f) << prefixShift;
+            if ((b & 0x80) == 0) {
+                if (prefix < 0 || prefix > BinaryProtocol.MAX_FRAME_LENGTH) {
+                    return -1;
+                }
+                expected = prefix;
+                if (expected > bytes.length) {
+                    bytes = Arrays.copyOf(bytes, expected);
+                }
+            } else {
+                prefixShift += 7;
+                if (prefixShift > 28) {
+                    return -1;
+                }
+            }
+        }
+        int count = Math.min(expected - length, end - offset);
+        System.arraycopy(data, offset, bytes, length, count);
+        length += count;
+        return offset + count;
+    }
+
+    // Drop a '\n' if it is the next byte: the "\r\n" ending of the BINARY line.
+    public void skipLineFeed() {
+        skipLineFeed = true;
+    }
+
+    public boolean isComplete() {
+        return expected >= 0 && length == expected;
+    }
+
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public void clear() {
+        length = 0;
+        expected = -1;
+        prefix = 0;
+        prefixShift = 0;
+    }
+}
@@ -1,18 +1,32 @@
 package server;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Group {
     private final int id;
     private final String name;
-    private final List<ClientHandler> members = new CopyOnWriteArrayList<>();
-    private final List<Message> messages = new CopyOnWriteArrayList<>();
+    private final MemberSet members = new MemberSet(); // O(1) joins and leaves; broadcasts walk it without copying
+    private final Map<String, Integer> remoteMembers = new ConcurrentHashMap<>(); // Cluster: username -> node id
+    private final UsernameView usernames = new UsernameView(); // Every member's name, for USERS and JOIN
+    private final MessageLog messages = new MessageLog();
+    private final SearchIndex searchIndex = new SearchIndex(); // Words of every message, for SEARCH
+    private final MessageIndex messageIndex; // Server-wide id lookup. Null for a standalone group.
+    private final LatencyHistogram fanoutTimes; // Server-wide broadcast timings. Null for a standalone group.
 
     public Group(int id, String name) {
+        this(id, name, null, null);
+    }
+
+    public Group(int id, String name, MessageIndex messageIndex, LatencyHistogram fanoutTimes) {
         this.id = id;
         this.name = name;
+        this.messageIndex = messageIndex;
+        this.fanoutTimes = fanoutTimes;
     }
 
     public int getId() {
@@ -23,55 +37,186 @@ public class Group {
         return name;
     }
 
-    public void addMember(ClientHandler client) {
-        members.add(client);
+    // Returns false if the client was already a member, or the group is being deleted.
+    public boolean addMember(ClientHandler client) {
+        if (!members.add(client)) {
+            return false;
+        }
+        if (client.username != null) {
+            usernames.add(client.username);
+        }
+        return true;
     }
 
     public void removeMember(ClientHandler client) {
-        members.remove(client);
+        if (members.remove(client) && client.username != null) {
+            usernames.remove(client.username);
+        }
+    }
+
+    // Stop anyone joining, before deleting the group. Returns false (and changes nothing) if
+    // anyone but client is a member, on this node or another.
+    public boolean close(ClientHandler client) {
+        if (hasRemoteMembers() || !members.closeUnlessOthers(client)) {
+            return false;
+        }
+        if (hasRemoteMembers()) {
+            members.reopen(); // Someone joined on another node meanwhile
+            return false;
+        }
+        return true;
+    }
+
+    // Undo close() when the group could not be deleted.
+    public void reopen() {
+        members.reopen();
     }
 
     public boolean hasMember(ClientHandler client) {
         return members.contains(client);
     }
 
+    // Copy of the members on this node.
     public List<ClientHandler> getMembers() {
-        return members;
+        return members.toList();
+    }
+
+    public int getMemberCount() {
+        return members.size();
+    }
+
+    // Members connected to another node of the cluster. Returns false if already known.
+    public boolean addRemoteMember(String username, int nodeId) {
+        if (remoteMembers.put(username, nodeId) != null) {
+            return false;
+        }
+        usernames.add(username);
+        return true;
+    }
+
+    // Returns false unless the user was a member on that node.
+    public boolean removeRemoteMember(String username, int nodeId) {
+        if (!remoteMembers.remove(username, nodeId)) {
+            return false;
+        }
+        usernames.remove(username);
+        return true;
+    }
+
+    // Forget every member on a node that left the cluster. Returns their usernames.
+    public List<String> removeRemoteMembers(int nodeId) {
+        List<String> removed = new ArrayList<>();
+        for (Map.Entry<String, Integer> member : remoteMembers.entrySet()) {
+            if (member.getValue() == nodeId && remoteMembers.remove(member.getKey(), nodeId)) {
+                usernames.remove(member.getKey());
+                removed.add(member.getKey());
+            }
+        }
+        return removed;
+    }
+
+    public boolean hasRemoteMembers() {
+        return !remoteMembers.isEmpty();
     }
 
     public void addMessage(Message message) {
-        messages.add(message);
+        messages.append(message);
+        searchIndex.add(message);
+        if (messageIndex != null) {
+            messageIndex.add(this, message);
+        }
     }
 
+    // Read-only view of the whole history, oldest first.
     public List<Message> getMessages() {
         return messages;
     }
 
     public List<Message> getLastMessages(int count) {
-        List<Message> result = new ArrayList<>();
-        int start = Math.max(0, messages.size() - count);
-        for (int i = start; i < messages.size(); i++) {
-            result.add(messages.get(i));
+        return messages.tail(count);
+    }
+
+    // Up to limit messages posted before the message with id beforeId (0 = after the newest),
+    // oldest first. Ids grow as messages are added (Server.post() takes the id and appends under
+    // the group's lock), so the cut-off is found by binary search.
+    public List<Message> getMessagesBefore(int beforeId, int limit) {
+        int end = beforeId > 0 ? position(beforeId) : messages.size();
+        return messages.range(end - limit, end);
+    }
+
+    // The newest messages (at most limit) whose subject or content has every word of the query,
+    // oldest first.
+    public List<Message> search(String query, int limit) {
+        int[] ids = searchIndex.search(query, limit);
+        List<Message> found = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            int position = position(id);
+            if (position < messages.size() && messages.get(position).getId() == id) {
+                found.add(messages.get(position));
+            }
+        }
+        return found;
+    }
+
+    // Position of the first message with an id of at least id.
+    private int position(int id) {
+        int low = 0;
+        int high = messages.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (messages.get(mid).getId() < id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
         }
-        return result;
+        return low;
     }
 
+    // Messages at positions [from, to) in the history, oldest first.
+    public List<Message> getMessages(int from, int to) {
+        return messages.range(from, to);
+    }
+
+    // Encode the line once and queue the same bytes for every member except the sender.
     public void broadcast(String message, ClientHandler sender) {
+        broadcast(OutboundQueue.encode(message), BinaryProtocol.text(message), sender);
+    }
+
+    // Send an already encoded line to every member except the sender. Members in binary mode
+    // get binaryFrame, the same broadcast encoded as a binary protocol frame.
+    public void broadcast(ByteBuffer frame, ByteBuffer binaryFrame, ClientHandler sender) {
+        long start = System.nanoTime();
         for (ClientHandler client : members) {
             if (client != sender) {
-                client.send(message);
+                client.sendFrame(frame, binaryFrame);
             }
         }
+        if (fanoutTimes != null) {
+            fanoutTimes.record(System.nanoTime() - start);
+        }
     }
 
-    // Get list of all usernames in this group
-    public List<String> getUsernames() {
-        List<String> usernames = new ArrayList<>();
+    // Same, except to every member in excluded.
+    public void broadcast(ByteBuffer frame, ByteBuffer binaryFrame, Set<ClientHandler> excluded) {
+        long start = System.nanoTime();
         for (ClientHandler client : members) {
-            if (client.username != null) {
-                usernames.add(client.username);
+            if (!excluded.contains(client)) {
+                client.sendFrame(frame, binaryFrame);
             }
         }
+        if (fanoutTimes != null) {
+            fanoutTimes.record(System.nanoTime() - start);
+        }
+    }
+
+    // Get list of all usernames in this group, including members on other cluster nodes
+    public List<String> getUsernames() {
+        return usernames.list();
+    }
+
+    // The same names, kept up to date and pre-rendered for USERS replies
+    public UsernameView getUsernameView() {
         return usernames;
     }
 }
@@ -0,0 +1,116 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * All groups on the server, indexed by id and by case-insensitive name.
+ * Lookups are a single map get; the id index is sorted so GROUPS can page through it.
+ */
+public class GroupRegistry {
+    private final ConcurrentSkipListMap<Integer, Group> byId = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<String, Group> byName = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final MessageIndex messageIndex;
+    private final LatencyHistogram fanoutTimes;
+
+    public GroupRegistry(MessageIndex messageIndex, LatencyHistogram fanoutTimes) {
+        this.messageIndex = messageIndex;
+        this.fanoutTimes = fanoutTimes;
+    }
+
+    // Create a group with the next free id. Returns null if the name is already taken.
+    public Group create(String name) {
+        if (byName.containsKey(key(name))) {
+            return null; // Cheap early exit so a taken name doesn't burn an id
+        }
+        return add(nextId.getAndIncrement(), name);
+    }
+
+    // Add a group with a known id (built-in groups and journal replay). Returns null if the name is taken.
+    public Group add(int id, String name) {
+        Group group = new Group(id, name, messageIndex, fanoutTimes);
+        // Claim the name first so two creates with the same name can't both win.
+        if (byName.putIfAbsent(key(name), group) != null) {
+            return null;
+        }
+        byId.put(id, group);
+        nextId.accumulateAndGet(id + 1, Math::max);
+        return group;
+    }
+
+    public void remove(Group group) {
+        byId.remove(group.getId(), group);
+        byName.remove(key(group.getName()), group);
+    }
+
+    // Get group by ID or name.
+    public Group get(String identifier) {
+        int id = parseId(identifier);
+        if (id >= 0) {
+            Group group = byId.get(id);
+            if (group != null) {
+                return group;
+            }
+        }
+        return byName.get(key(identifier));
+    }
+
+    public Group get(int id) {
+        return byId.get(id);
+    }
+
+    // The group with the lowest id, or null if there are none.
+    public Group first() {
+        Map.Entry<Integer, Group> entry = byId.firstEntry();
+        return entry != null ? entry.getValue() : null;
+    }
+
+    // All groups in id order.
+    public Collection<Group> all() {
+        return byId.values();
+    }
+
+    // Up to limit groups with an id greater than afterId, in id order.
+    public List<Group> page(int afterId, int limit) {
+        List<Group> result = new ArrayList<>(Math.min(limit, 256));
+        for (Group group : byId.tailMap(afterId, false).values()) {
+            if (result.size() >= limit) {
+                break;
+            }
+            result.add(group);
+        }
+        return result;
+    }
+
+    public int size() {
+        return byName.size(); // ConcurrentHashMap keeps a count; the skip list would walk every entry
+    }
+
+    // Digits only (no sign, no whitespace) and small enough for an int; -1 otherwise.
+    // Avoids Integer.parseInt's exception for the common case of looking up by name.
+    static int parseId(String s) {
+        if (s.isEmpty() || s.length() > 9) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+}
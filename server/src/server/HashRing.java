@@ -0,0 +1,46 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Consistent hash ring over the cluster's node ids.
+ * Each node gets many points on the ring (virtual nodes) so keys spread evenly, and adding or
+ * removing a node only moves the keys next to its points. A key belongs to the first point at
+ * or after its hash, wrapping around. Every node builds the same ring from the same node list,
+ * so they all agree on owners without talking to each other.
+ */
+public class HashRing {
+    private static final int POINTS_PER_NODE = 128;
+
+    private final TreeMap<Integer, Integer> points = new TreeMap<>(); // Hash -> node id
+
+    public HashRing(Iterable<Integer> nodeIds) {
+        for (int node : nodeIds) {
+            for (int i = 0; i < POINTS_PER_NODE; i++) {
+                points.put(hash("node-" + node + "#" + i), node);
+            }
+        }
+    }
+
+    // The node that owns this key, e.g. "group:7" or "user:alice".
+    public int owner(String key) {
+        Map.Entry<Integer, Integer> entry = points.ceilingEntry(hash(key));
+        return (entry != null ? entry : points.firstEntry()).getValue();
+    }
+
+    // FNV-1a over the UTF-8 bytes, then a murmur3 finalizer to spread nearby keys.
+    private static int hash(String key) {
+        int h = 0x811c9dc5;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h = (h ^ (b & 0xff)) * 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
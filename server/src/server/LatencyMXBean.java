@@ -0,0 +1,16 @@
+package server;
+
+// JMX view of one LatencyHistogram. Times are in microseconds.
+public interface LatencyMXBean {
+    long getCount();
+
+    double getMeanMicros();
+
+    double getP50Micros();
+
+    double getP99Micros();
+
+    double getP999Micros();
+
+    double getMaxMicros();
+}
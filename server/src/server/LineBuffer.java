@@ -0,0 +1,52 @@
+package server;
+
+import java.util.Arrays;
+
+/*
+ * Collects incoming bytes into protocol lines without creating a String per line.
+ * Line endings match BufferedReader.readLine(): "\n", "\r" or "\r\n".
+ */
+public class LineBuffer {
+    private byte[] bytes = new byte[256];
+    private int length = 0;
+    private boolean skipLineFeed = false; // Last line ended with '\r'; swallow a following '\n'
+
+    // Add one byte. Returns true when it completes a line; read it with bytes()/length(), then clear().
+    public boolean add(byte b) {
+        if (skipLineFeed) {
+            skipLineFeed = false;
+            if (b == '\n') {
+                return false;
+            }
+        }
+        if (b == '\n') {
+            return true;
+        }
+        if (b == '\r') {
+            skipLineFeed = true;
+            return true;
+        }
+        if (length == bytes.length) {
+            bytes = Arrays.copyOf(bytes, bytes.length * 2);
+        }
+        bytes[length++] = b;
+        return false;
+    }
+
+    // True if the last line ended with '\r', so a '\n' that comes next still belongs to it.
+    public boolean expectsLineFeed() {
+        return skipLineFeed;
+    }
+
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public void clear() {
+        length = 0;
+    }
+}
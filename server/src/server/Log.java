@@ -0,0 +1,163 @@
+package server;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Leveled server log written by a background thread.
+ *
+ * Logging threads only put the line into a bounded lock-free ring (one CAS, no lock, no I/O).
+ * The "log-writer" thread takes lines off the ring in batches and prints each batch with one
+ * call, so client threads never wait on the console. If the ring is full the line is dropped
+ * and counted rather than making the caller wait. A disabled level costs one volatile read.
+ *
+ * INFO and below go to stdout, WARN and ERROR to stderr.
+ * Per-command logs ("CLIENT SAID") can also be sampled: with a sample of N roughly one line in
+ * N is logged.
+ */
+public final class Log {
+    public enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR,
+        OFF
+    }
+
+    private static final int CAPACITY = 1 << 16; // Lines the ring can hold; a power of two
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_PARK_NANOS = 1_000_000; // Writer sleeps 1 ms when the ring is empty
+
+    // Vyukov-style bounded queue: slot i is free for the producer at position p when
+    // sequences[i] == p, and holds a published line for the consumer when it is p + 1.
+    private static final String[] lines = new String[CAPACITY];
+    private static final byte[] levels = new byte[CAPACITY];
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong(); // Next position to claim (producers)
+    private static long head = 0;                            // Next position to read (writer thread only)
+    private static final LongAdder dropped = new LongAdder();
+
+    private static volatile int threshold = Level.INFO.ordinal();
+    private static volatile int commandSample = 1; // Log 1 in N client command lines
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+        Thread writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // Don't lose the last lines (e.g. a startup error) when the JVM exits.
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    public static void configure(Level level, int sample) {
+        threshold = level.ordinal();
+        commandSample = Math.max(1, sample);
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold;
+    }
+
+    // True if this client command line should be logged. Check before building the line.
+    public static boolean sampleCommand() {
+        if (!isEnabled(Level.INFO)) {
+            return false;
+        }
+        int sample = commandSample;
+        return sample == 1 || ThreadLocalRandom.current().nextInt(sample) == 0;
+    }
+
+    public static void debug(String line) {
+        log(Level.DEBUG, line);
+    }
+
+    public static void info(String line) {
+        log(Level.INFO, line);
+    }
+
+    public static void warn(String line) {
+        log(Level.WARN, line);
+    }
+
+    public static void error(String line) {
+        log(Level.ERROR, line);
+    }
+
+    private static void log(Level level, String line) {
+        if (isEnabled(level) && !offer((byte) level.ordinal(), line)) {
+            dropped.increment();
+        }
+    }
+
+    // Claim a slot and publish the line. Returns false if the ring is full.
+    private static boolean offer(byte level, String line) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & MASK;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    lines[index] = line;
+                    levels[index] = level;
+                    sequences.set(index, position + 1); // Publishes the line to the writer
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false; // The writer hasn't freed this slot yet
+            } else {
+                position = tail.get(); // Another producer took it; try the next position
+            }
+        }
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            if (!drain()) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    // Print everything published so far. Returns false if there was nothing to print.
+    private static synchronized boolean drain() {
+        var out = new StringBuilder();
+        var err = new StringBuilder();
+        boolean any = false;
+        while (true) {
+            int index = (int) head & MASK;
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+            String line = lines[index];
+            boolean toErr = levels[index] >= Level.WARN.ordinal();
+            lines[index] = null;
+            sequences.set(index, head + CAPACITY); // Free the slot for the next lap
+            head++;
+            (toErr ? err : out).append(line).append(System.lineSeparator());
+            any = true;
+        }
+
+        long lost = dropped.sumThenReset();
+        if (lost > 0) {
+            err.append("Log dropped ").append(lost).append(" lines").append(System.lineSeparator());
+        }
+        if (out.length() > 0) {
+            System.out.print(out);
+            System.out.flush();
+        }
+        if (err.length() > 0) {
+            System.err.print(err);
+            System.err.flush();
+        }
+        return any;
+    }
+}
@@ -3,12 +3,12 @@ package server;
 public class Main {
     public static void main(String[] args) {
         try {
-            // Attempt to read the first argument, which is expected to be a port number.
-            // Default to 8000 if arg not present.
-            int port = args.length > 0 ? Integer.parseInt(args[0]) : 8000;
+            // Read the port number and options from the arguments.
+            // Port defaults to 8000 and the engine to the blocking one if not present.
+            var config = ServerConfig.parse(args);
 
             // Initialize a server object that will listen on that port.
-            var server = new Server(port);
+            var server = new Server(config);
 
             // Starts the server.
             server.start();
@@ -16,4 +16,4 @@ public class Main {
             System.err.println("Error in main(): " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,143 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * The members of one group on this node, with O(1) join, leave and contains however big the
+ * group is. (A CopyOnWriteArrayList copied every member on each join and leave, and its
+ * contains() walked them all.)
+ *
+ * Members sit in the slots of an array. A leave only clears its slot; nobody is moved, so a
+ * broadcast can walk the array without a lock or a copy. A member that stays in the group for
+ * the whole walk is visited exactly once; one that joins or leaves meanwhile may or may not be.
+ * The members are compacted into a new array twice their number (readers still walking the
+ * old one are not affected) when a join finds the array full, and when a leave leaves more
+ * than three quarters of the used slots empty, which keeps joins and leaves O(1) on average.
+ * Joins and leaves lock the set; contains() and iteration don't.
+ * A group being deleted closes its set, after which joins fail.
+ */
+public class MemberSet implements Iterable<ClientHandler> {
+    private static final int MIN_CAPACITY = 8;
+
+    private final ConcurrentHashMap<ClientHandler, Integer> slotOf = new ConcurrentHashMap<>();
+    private volatile AtomicReferenceArray<ClientHandler> slots = new AtomicReferenceArray<>(MIN_CAPACITY);
+    private int end = 0; // Slots from here on have never been used in this array. Guarded by this.
+    private boolean closed = false; // Set while the group is being deleted. Guarded by this.
+
+    // Returns false if the client was already a member, or the set is closed.
+    public synchronized boolean add(ClientHandler client) {
+        if (closed || slotOf.containsKey(client)) {
+            return false;
+        }
+        if (end == slots.length()) {
+            compact(); // Full: drop the empty slots, or grow if there are few
+        }
+        slots.set(end, client);
+        slotOf.put(client, end);
+        end++;
+        return true;
+    }
+
+    // Returns false if the client was not a member.
+    public synchronized boolean remove(ClientHandler client) {
+        Integer slot = slotOf.remove(client);
+        if (slot == null) {
+            return false;
+        }
+        slots.set(slot, null);
+        if (end > MIN_CAPACITY && slotOf.size() * 4 < end) {
+            compact(); // Mostly empty after a mass leave: don't make broadcasts skip them all
+        }
+        return true;
+    }
+
+    // Close the set if it is empty or client is its only member, so nobody can join any more.
+    // Checking and closing under one lock means no join slips in between. Returns false (and
+    // leaves the set open) if anyone else is a member.
+    public synchronized boolean closeUnlessOthers(ClientHandler client) {
+        if (slotOf.size() > (slotOf.containsKey(client) ? 1 : 0)) {
+            return false;
+        }
+        closed = true;
+        return true;
+    }
+
+    // Let members join again after closeUnlessOthers() (the group was not deleted after all).
+    public synchronized void reopen() {
+        closed = false;
+    }
+
+    public boolean contains(ClientHandler client) {
+        return slotOf.containsKey(client);
+    }
+
+    public int size() {
+        return slotOf.size();
+    }
+
+    // Move the members, in order, to the front of a new array twice their number.
+    private void compact() {
+        AtomicReferenceArray<ClientHandler> current = slots;
+        var compacted = new AtomicReferenceArray<ClientHandler>(Math.max(MIN_CAPACITY, slotOf.size() * 2));
+        int count = 0;
+        for (int i = 0; i < end; i++) {
+            ClientHandler client = current.get(i);
+            if (client != null) {
+                compacted.set(count, client);
+                slotOf.put(client, count);
+                count++;
+            }
+        }
+        end = count;
+        slots = compacted;
+    }
+
+    // Copy of the current members.
+    public List<ClientHandler> toList() {
+        List<ClientHandler> list = new ArrayList<>(size());
+        for (ClientHandler client : this) {
+            list.add(client);
+        }
+        return list;
+    }
+
+    // Walks the array as it is when the iterator is created, skipping empty slots.
+    @Override
+    public Iterator<ClientHandler> iterator() {
+        AtomicReferenceArray<ClientHandler> current = slots;
+        return new Iterator<ClientHandler>() {
+            private int index = 0;
+            private ClientHandler next = advance();
+
+            private ClientHandler advance() {
+                while (index < current.length()) {
+                    ClientHandler client = current.get(index++);
+                    if (client != null) {
+                        return client;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public ClientHandler next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                ClientHandler client = next;
+                next = advance();
+                return client;
+            }
+        };
+    }
+}
@@ -1,22 +1,62 @@
 package server;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Message {
-    private static int nextId = 1;
+    private static final AtomicInteger nextId = new AtomicInteger(1); // Posts come from many threads
+    // In a cluster each node hands out every stride-th id, starting at offset + 1, so ids
+    // given out by different nodes never clash. A single server uses them all.
+    private static volatile int idStride = 1;
+    private static volatile int idOffset = 0;
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+    // Most posts land in the same second as the one before, so keep the last rendered date.
+    private static volatile RenderedSecond lastRendered = new RenderedSecond(Long.MIN_VALUE, "");
+
     private final int id;
     private final String sender;
-    private final LocalDateTime postDate;
+    private final long postMillis; // Epoch milliseconds
     private final String subject;
-    private final String content;
+    private volatile String content; // Null once moved to a content store
+    private ContentStore store;      // Set before content is cleared, so visible to whoever sees it null
+    private long contentPosition;
+    private int contentLength;       // UTF-8 bytes in the store
+    private final byte[] summary;  // UTF-8 "id|sender|date|subject", rendered once
 
     public Message(String sender, String subject, String content) {
-        this.id = nextId++;
+        this(nextId.getAndAdd(idStride), sender, System.currentTimeMillis(), subject, content);
+    }
+
+    // Rebuilds a message read back from the journal, keeping its original id and date.
+    Message(int id, String sender, long postMillis, String subject, String content) {
+        this.id = id;
         this.sender = sender;
-        this.postDate = LocalDateTime.now();
+        this.postMillis = postMillis;
         this.subject = subject;
         this.content = content;
+        this.summary = (id + "|" + sender + "|" + formatDate(postMillis) + "|" + subject).getBytes(StandardCharsets.UTF_8);
+        // New posts must not reuse ids from before the restart.
+        nextId.accumulateAndGet(id + 1, (next, min) -> alignId(Math.max(next, min)));
+    }
+
+    // Use only the ids of node number offset (0 based) out of stride nodes. Set before any
+    // message is created or replayed.
+    static void stripeIds(int stride, int offset) {
+        idStride = stride;
+        idOffset = offset;
+        nextId.updateAndGet(Message::alignId);
+    }
+
+    // The first id at or after id that belongs to this node.
+    private static int alignId(int id) {
+        return id + Math.floorMod(idOffset + 1 - id, idStride);
     }
 
     public int getId() {
@@ -28,21 +68,66 @@ public class Message {
     }
 
     public LocalDateTime getPostDate() {
-        return postDate;
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(postMillis), ZONE);
+    }
+
+    public long getPostMillis() {
+        return postMillis;
     }
 
     public String getSubject() {
         return subject;
     }
 
+    // Reads the body back from the content store if it was moved there. Throws
+    // UncheckedIOException if it can't be read.
     public String getContent() {
-        return content;
+        String current = content;
+        return current != null ? current : store.load(id, contentPosition, contentLength);
+    }
+
+    // Keep the body in the store instead of on the heap. Call once the message has been posted
+    // (journaled, indexed); on an error the body just stays here.
+    void moveContent(ContentStore store) throws IOException {
+        String current = content;
+        if (current == null || current.isEmpty()) {
+            return;
+        }
+        byte[] utf8 = current.getBytes(StandardCharsets.UTF_8);
+        this.contentPosition = store.store(id, current, utf8);
+        this.contentLength = utf8.length;
+        this.store = store;
+        this.content = null;
     }
 
     // Format: "id|sender|date|subject"
     public String toSummaryString() {
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-        return id + "|" + sender + "|" + postDate.format(formatter) + "|" + subject;
+        return new String(summary, StandardCharsets.UTF_8);
     }
-}
 
+    // A frame holding prefix followed by the summary, without formatting or encoding the summary again.
+    public ByteBuffer summaryFrame(String prefix) {
+        return OutboundQueue.encode(prefix, summary);
+    }
+
+    // "yyyy-MM-dd HH:mm:ss" in the server's time zone.
+    static String formatDate(long millis) {
+        long second = Math.floorDiv(millis, 1000);
+        RenderedSecond rendered = lastRendered;
+        if (rendered.second != second) {
+            rendered = new RenderedSecond(second, DATE_FORMAT.format(LocalDateTime.ofInstant(Instant.ofEpochSecond(second), ZONE)));
+            lastRendered = rendered;
+        }
+        return rendered.text;
+    }
+
+    private static final class RenderedSecond {
+        final long second;
+        final String text;
+
+        RenderedSecond(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+}
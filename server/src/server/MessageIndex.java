@@ -0,0 +1,50 @@
+package server;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Server-wide lookup from message id to the message and the group it was posted in.
+ * Filled in by Group.addMessage(), so GET_MESSAGE no longer scans every group's history.
+ */
+public class MessageIndex {
+    // A message together with the group that owns it.
+    public static class Entry {
+        private final Group group;
+        private final Message message;
+
+        Entry(Group group, Message message) {
+            this.group = group;
+            this.message = message;
+        }
+
+        public Group getGroup() {
+            return group;
+        }
+
+        public Message getMessage() {
+            return message;
+        }
+    }
+
+    private final ConcurrentHashMap<Integer, Entry> entries = new ConcurrentHashMap<>();
+
+    public void add(Group group, Message message) {
+        entries.put(message.getId(), new Entry(group, message));
+    }
+
+    // Forget every message of a deleted group.
+    public void removeGroup(Group group) {
+        for (Message message : group.getMessages()) {
+            entries.remove(message.getId());
+        }
+    }
+
+    // Returns null if no message has this id.
+    public Entry get(int id) {
+        return entries.get(id);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+}
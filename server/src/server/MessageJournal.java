@@ -0,0 +1,303 @@
+package server;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/*
+ * Append-only journal of posted messages (and group creation/deletion), written through
+ * memory-mapped segment files.
+ *
+ * A post only copies its record into the mapped segment (no system call). A background
+ * flusher forces the segment to disk, covering every record appended since the last force
+ * with a single fsync (group commit). In ASYNC mode posts never wait for the flusher; in
+ * GROUP mode a post waits until the fsync that covers it is done.
+ *
+ * Record layout: [int payload length][int CRC32 of payload][payload]
+ * Payload:       [byte type][int group id] followed by, per type:
+ *                MESSAGE:       [int message id][long epoch millis][sender][subject][content]
+ *                GROUP_CREATED: [name]
+ *                GROUP_DELETED: nothing
+ *                (strings are int length + UTF-8 bytes)
+ * A zero length marks the unused tail of a segment.
+ */
+public class MessageJournal implements AutoCloseable {
+    public enum Durability {
+        ASYNC, // Return right away; the flusher forces every fsync interval
+        GROUP  // Wait for the next group fsync before the post is acknowledged
+    }
+
+    // Receives decoded journal records in the order they were written.
+    public interface ReplayHandler {
+        void onMessage(int groupId, Message message);
+
+        void onGroupCreated(int groupId, String name);
+
+        void onGroupDeleted(int groupId);
+    }
+
+    private static final byte TYPE_MESSAGE = 1;
+    private static final byte TYPE_GROUP_CREATED = 2;
+    private static final byte TYPE_GROUP_DELETED = 3;
+    private static final int HEADER_SIZE = 8;
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private final Path directory;
+    private final Durability durability;
+    private final long fsyncIntervalMillis;
+    private final Thread flusher;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private int segmentNumber;
+    private long appended = 0; // Records appended so far
+    private long forced = 0;   // Records known to be on disk
+    private boolean flushRequested = false;
+    private volatile boolean closed = false;
+
+    public MessageJournal(Path directory, Durability durability, long fsyncIntervalMillis) throws IOException {
+        this.directory = directory;
+        this.durability = durability;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        Files.createDirectories(directory);
+        this.flusher = new Thread(this::flushLoop, "journal-flusher");
+        this.flusher.setDaemon(true);
+    }
+
+    /*
+     * Read every valid record in order and position the journal for appending after the last one.
+     * A torn or corrupt record at the end of the newest segment (a crash mid-write) is dropped.
+     * Must be called once, before the first append.
+     */
+    public synchronized void replay(ReplayHandler handler) throws IOException {
+        List<Path> segments = listSegments();
+        for (int i = 0; i < segments.size(); i++) {
+            Path path = segments.get(i);
+            boolean last = i == segments.size() - 1;
+            try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+                int end = replaySegment(buffer, handler);
+                if (last) {
+                    segmentNumber = segmentNumber(path);
+                    openSegment(end);
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            segmentNumber = 1;
+            openSegment(0);
+        }
+        flusher.start();
+    }
+
+    // Replays one segment and returns the offset just past its last valid record.
+    private int replaySegment(ByteBuffer buffer, ReplayHandler handler) {
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                return start;
+            }
+
+            ByteBuffer payload = buffer.slice(buffer.position(), length);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                return start;
+            }
+            buffer.position(buffer.position() + length);
+
+            try {
+                byte type = payload.get();
+                int groupId = payload.getInt();
+                if (type == TYPE_MESSAGE) {
+                    int id = payload.getInt();
+                    long millis = payload.getLong();
+                    String sender = readString(payload);
+                    String subject = readString(payload);
+                    String content = readString(payload);
+                    handler.onMessage(groupId, new Message(id, sender, millis, subject, content));
+                } else if (type == TYPE_GROUP_CREATED) {
+                    handler.onGroupCreated(groupId, readString(payload));
+                } else if (type == TYPE_GROUP_DELETED) {
+                    handler.onGroupDeleted(groupId);
+                }
+            } catch (BufferUnderflowException e) {
+                return start;
+            }
+        }
+        return buffer.position();
+    }
+
+    // Append a message record without waiting for it to reach the disk. Returns a ticket
+    // for awaitForced().
+    public long append(int groupId, Message message) throws IOException {
+        byte[] sender = message.getSender().getBytes(StandardCharsets.UTF_8);
+        byte[] subject = message.getSubject().getBytes(StandardCharsets.UTF_8);
+        byte[] content = message.getContent().getBytes(StandardCharsets.UTF_8);
+        long millis = message.getPostMillis();
+
+        int length = 1 + 4 + 4 + 8 + 12 + sender.length + subject.length + content.length;
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        payload.put(TYPE_MESSAGE).putInt(groupId).putInt(message.getId()).putLong(millis);
+        payload.putInt(sender.length).put(sender);
+        payload.putInt(subject.length).put(subject);
+        payload.putInt(content.length).put(content);
+        return appendRecord(payload.flip());
+    }
+
+    public void appendGroupCreated(int groupId, String name) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(1 + 4 + 4 + bytes.length);
+        payload.put(TYPE_GROUP_CREATED).putInt(groupId).putInt(bytes.length).put(bytes);
+        awaitForced(appendRecord(payload.flip()));
+    }
+
+    public void appendGroupDeleted(int groupId) throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(1 + 4);
+        payload.put(TYPE_GROUP_DELETED).putInt(groupId);
+        awaitForced(appendRecord(payload.flip()));
+    }
+
+    private long appendRecord(ByteBuffer payload) throws IOException {
+        int length = payload.remaining();
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+
+        long ticket;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Journal is closed");
+            }
+            if (segment.remaining() < HEADER_SIZE + length) {
+                rollSegment(HEADER_SIZE + length);
+            }
+            segment.putInt(length).putInt((int) crc.getValue()).put(payload);
+            ticket = ++appended;
+            if (durability == Durability.GROUP) {
+                flushRequested = true;
+                notifyAll();
+            }
+        }
+        return ticket;
+    }
+
+    // In GROUP mode, wait until the record with this ticket is on disk. Returns at once in ASYNC mode.
+    public synchronized void awaitForced(long ticket) throws IOException {
+        if (durability != Durability.GROUP) {
+            return;
+        }
+        while (forced < ticket && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for journal fsync");
+            }
+        }
+    }
+
+    // Runs on the flusher thread: one force() covers every record appended since the last one.
+    private void flushLoop() {
+        while (!closed) {
+            MappedByteBuffer toForce;
+            long target;
+            synchronized (this) {
+                if (!flushRequested) {
+                    try {
+                        wait(fsyncIntervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                flushRequested = false;
+                if (appended == forced) {
+                    continue;
+                }
+                toForce = segment;
+                target = appended;
+            }
+
+            // Force outside the lock so posts keep appending while the disk catches up.
+            toForce.force();
+
+            synchronized (this) {
+                forced = Math.max(forced, target);
+                notifyAll();
+            }
+        }
+    }
+
+    // Called with the lock held when the current segment is full.
+    private void rollSegment(int needed) throws IOException {
+        if (needed > SEGMENT_SIZE) {
+            throw new IOException("Message too large for the journal");
+        }
+        segment.force(); // Everything in the old segment is on disk before we leave it
+        forced = appended;
+        notifyAll();
+        channel.close();
+        segmentNumber++;
+        openSegment(0);
+    }
+
+    private void openSegment(int position) throws IOException {
+        Path path = directory.resolve(String.format("segment-%08d.log", segmentNumber));
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        segment.position(position);
+    }
+
+    private List<Path> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(p -> p.getFileName().toString().matches("segment-\\d{8}\\.log"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static int segmentNumber(Path path) {
+        String name = path.getFileName().toString();
+        return Integer.parseInt(name.substring("segment-".length(), name.length() - ".log".length()));
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        flusher.interrupt();
+        synchronized (this) {
+            if (segment != null) {
+                segment.force();
+                channel.close();
+            }
+        }
+    }
+}
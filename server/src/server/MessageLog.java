@@ -0,0 +1,98 @@
+package server;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Append-only message history for a group, stored in fixed-size chunks.
+ * Appending never copies existing messages (unlike CopyOnWriteArrayList), so a post costs
+ * the same whether the group has ten messages or ten million.
+ *
+ * Appends take a slot with an atomic counter and fill it; then whoever finds the slots after the
+ * published prefix filled moves the prefix over them. An append whose earlier slot is still being
+ * filled doesn't wait for it: the append filling that slot publishes both. Readers only look at
+ * the published prefix, so they never need a lock and never see a gap.
+ * As a List it is read-only; size() only ever grows.
+ */
+public class MessageLog extends AbstractList<Message> implements RandomAccess {
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS; // 1024 messages per chunk
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(Message[].class);
+
+    private final AtomicInteger reserved = new AtomicInteger();  // Next slot to hand out
+    private final AtomicInteger published = new AtomicInteger(); // Slots [0, published) are readable
+    // Only replaced (never modified in place) when a chunk is added, once per CHUNK_SIZE appends.
+    private volatile Message[][] chunks = new Message[0][];
+
+    public void append(Message message) {
+        int index = reserved.getAndIncrement();
+        SLOT.setVolatile(chunkFor(index), index & CHUNK_MASK, message);
+
+        // Publish every filled slot right after the prefix. Stop at one still being filled: its
+        // append has yet to get here. (It writes its slot before reading ours and we wrote ours
+        // before reading its, so at least one of the two sees both filled.)
+        int end = published.get();
+        while (end < reserved.get() && SLOT.getVolatile(chunkFor(end), end & CHUNK_MASK) != null) {
+            published.compareAndSet(end, end + 1);
+            end = published.get();
+        }
+    }
+
+    private Message[] chunkFor(int index) {
+        int chunk = index >>> CHUNK_BITS;
+        Message[][] current = chunks;
+        if (chunk < current.length) {
+            return current[chunk];
+        }
+        synchronized (this) {
+            current = chunks;
+            if (chunk >= current.length) {
+                Message[][] grown = new Message[chunk + 1][];
+                System.arraycopy(current, 0, grown, 0, current.length);
+                for (int i = current.length; i <= chunk; i++) {
+                    grown[i] = new Message[CHUNK_SIZE];
+                }
+                chunks = grown;
+                current = grown;
+            }
+            return current[chunk];
+        }
+    }
+
+    @Override
+    public int size() {
+        return published.get();
+    }
+
+    @Override
+    public Message get(int index) {
+        if (index < 0 || index >= published.get()) {
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+        return chunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    // Messages in [from, to), clamped to what has been published.
+    public List<Message> range(int from, int to) {
+        int end = Math.min(to, published.get());
+        int start = Math.max(0, from);
+        Message[][] snapshot = chunks; // Read after published, so it covers every published slot
+        List<Message> result = new ArrayList<>(Math.max(0, end - start));
+        for (int i = start; i < end; i++) {
+            result.add(snapshot[i >>> CHUNK_BITS][i & CHUNK_MASK]);
+        }
+        return result;
+    }
+
+    // The last count messages, oldest first.
+    public List<Message> tail(int count) {
+        int end = published.get();
+        return range(end - count, end);
+    }
+}
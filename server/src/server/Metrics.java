@@ -0,0 +1,110 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+ * Counters and latency histograms for the whole server.
+ * Handlers record into LongAdder-based histograms, so instrumenting every command costs a
+ * few uncontended adds. The same numbers are exported over JMX (domain "server") and
+ * returned by the STATS command.
+ */
+public class Metrics implements MetricsMXBean {
+    private final Server server;
+    private final Map<CommandParser.Command, LatencyHistogram> commandTimes = new EnumMap<>(CommandParser.Command.class);
+    private final LatencyHistogram fanoutTimes = new LatencyHistogram(); // One Group.broadcast() each
+
+    public Metrics(Server server) {
+        this.server = server;
+        for (CommandParser.Command command : CommandParser.Command.values()) {
+            if (command != CommandParser.Command.EMPTY) {
+                commandTimes.put(command, new LatencyHistogram());
+            }
+        }
+    }
+
+    public void recordCommand(CommandParser.Command command, long nanos) {
+        LatencyHistogram histogram = commandTimes.get(command);
+        if (histogram != null) {
+            histogram.record(nanos);
+        }
+    }
+
+    public LatencyHistogram getCommandTimes(CommandParser.Command command) {
+        return commandTimes.get(command);
+    }
+
+    public Map<CommandParser.Command, LatencyHistogram> getAllCommandTimes() {
+        return commandTimes;
+    }
+
+    public LatencyHistogram getFanoutTimes() {
+        return fanoutTimes;
+    }
+
+    // Export everything through the platform MBean server. Failures only cost the JMX view.
+    public void register() {
+        MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+        try {
+            mbeans.registerMBean(this, new ObjectName("server:type=Server"));
+            mbeans.registerMBean(fanoutTimes, new ObjectName("server:type=Broadcast"));
+            for (Map.Entry<CommandParser.Command, LatencyHistogram> entry : commandTimes.entrySet()) {
+                mbeans.registerMBean(entry.getValue(), new ObjectName("server:type=Command,name=" + entry.getKey()));
+            }
+        } catch (JMException e) {
+            Log.warn("JMX registration failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public int getConnectedClients() {
+        return server.getClientCount();
+    }
+
+    @Override
+    public int getLoggedInUsers() {
+        return server.getUsernameCount();
+    }
+
+    @Override
+    public int getGroupCount() {
+        return server.getGroupCount();
+    }
+
+    @Override
+    public int getMessageCount() {
+        return server.getMessageCount();
+    }
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Map.Entry<CommandParser.Command, LatencyHistogram> entry : commandTimes.entrySet()) {
+            counts.put(entry.getKey().name(), entry.getValue().getCount());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Integer> getGroupMembers() {
+        Map<String, Integer> members = new LinkedHashMap<>();
+        for (Group group : server.getGroups()) {
+            members.put(group.getId() + ":" + group.getName(), group.getMemberCount());
+        }
+        return members;
+    }
+
+    @Override
+    public Map<String, Integer> getGroupMessages() {
+        Map<String, Integer> messages = new LinkedHashMap<>();
+        for (Group group : server.getGroups()) {
+            messages.put(group.getId() + ":" + group.getName(), group.getMessages().size());
+        }
+        return messages;
+    }
+}
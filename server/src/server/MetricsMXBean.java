@@ -0,0 +1,20 @@
+package server;
+
+import java.util.Map;
+
+// Server-wide JMX view. Per-command and broadcast timings are separate LatencyMXBeans.
+public interface MetricsMXBean {
+    int getConnectedClients();
+
+    int getLoggedInUsers();
+
+    int getGroupCount();
+
+    int getMessageCount();
+
+    Map<String, Long> getCommandCounts();
+
+    Map<String, Integer> getGroupMembers();
+
+    Map<String, Integer> getGroupMessages();
+}
@@ -0,0 +1,181 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * State for one client on the NIO engine: the channel, a read buffer that is split into
+ * protocol lines, and the client's outbound queue, which the owning loop drains into the
+ * channel. The protocol itself is still handled by ClientHandler, exactly as in the
+ * blocking engine.
+ */
+public class NioConnection {
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final SocketChannel channel;
+    private final NioEventLoop loop;
+    private final Server server;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final OutboundQueue outbound;
+    private ByteBuffer[] pendingWrite; // Batch the socket could not take yet
+    private int pendingIndex;          // First frame in pendingWrite with bytes left
+    private SelectionKey key;
+    private ClientHandler handler;
+    private volatile boolean closeAfterFlush = false; // Set by QUIT or a slow-client disconnect
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    public NioConnection(SocketChannel channel, NioEventLoop loop, Server server) {
+        this.channel = channel;
+        this.loop = loop;
+        this.server = server;
+
+        // Loops must never wait on each other, so BLOCK falls back to DISCONNECT here.
+        ServerConfig config = server.getConfig();
+        OutboundQueue.OverflowPolicy policy = config.getOverflowPolicy();
+        if (policy == OutboundQueue.OverflowPolicy.BLOCK) {
+            policy = OutboundQueue.OverflowPolicy.DISCONNECT;
+        }
+        this.outbound = new OutboundQueue(config.getOutboundCapacity(), policy,
+                () -> loop.requestFlush(this),
+                this::disconnectSlowClient);
+    }
+
+    // Called on the loop thread once the channel is registered.
+    void open(SelectionKey key) throws IOException {
+        this.key = key;
+        this.handler = new ClientHandler(server, outbound, channel.getRemoteAddress(), this);
+        server.add(handler);
+        handler.onConnect();
+    }
+
+    // Read what is available and run every complete line (or frame) through the protocol handler.
+    void onReadable() {
+        int n;
+        try {
+            n = channel.read(readBuffer);
+        } catch (IOException e) {
+            Log.error("Client error: " + e.getMessage());
+            close();
+            return;
+        }
+        if (n < 0) {
+            // A last line without a line ending still counts, like the blocking engine.
+            if (!closeAfterFlush) {
+                handler.receiveEnd();
+            }
+            close();
+            return;
+        }
+
+        // If the handler returns true, the client should exit once its output is sent.
+        if (!closeAfterFlush && handler.receive(readBuffer.array(), 0, readBuffer.position())) {
+            closeAfterFlush = true;
+            loop.requestFlush(this);
+        }
+        readBuffer.clear();
+        updateReadInterest();
+    }
+
+    // Read commands unless one is waiting for another node or the client's replies back up
+    // (flush() reads again once they are written).
+    private void updateReadInterest() {
+        int ops = key.interestOps();
+        if (!handler.isWaiting() && !outbound.hasReplyBacklog()) {
+            ops |= SelectionKey.OP_READ;
+        } else {
+            ops &= ~SelectionKey.OP_READ;
+        }
+        key.interestOps(ops);
+    }
+
+    // Called from any thread once a command that waited for another node of the cluster can
+    // go on: the loop runs the rest of it, then the input held back meanwhile, and reads again.
+    void resume(Runnable rest) {
+        loop.execute(() -> {
+            rest.run();
+            if (closed.get()) {
+                handler.onDisconnect(); // Put off by close() until the command was done
+                return;
+            }
+            if (!closeAfterFlush && handler.resumeInput()) {
+                closeAfterFlush = true;
+                loop.requestFlush(this);
+            }
+            updateReadInterest();
+        });
+    }
+
+    // DISCONNECT overflow policy. Runs on whatever thread overflowed the queue,
+    // so just mark the connection and let the loop close it.
+    private void disconnectSlowClient() {
+        Log.warn("Disconnecting slow client: " + channel.socket().getRemoteSocketAddress());
+        closeAfterFlush = true;
+        loop.requestFlush(this);
+    }
+
+    // Called on the loop thread. Sends queued frames one batch at a time with a gathering
+    // write (no copying into a combined buffer) until the queue is empty or the socket
+    // would block, in which case we wait for OP_WRITE.
+    void flush() {
+        if (closed.get()) {
+            return;
+        }
+        try {
+            while (true) {
+                if (pendingWrite == null) {
+                    List<ByteBuffer> batch = outbound.drain();
+                    if (batch.isEmpty()) {
+                        if (outbound.finishDrain()) {
+                            break;
+                        }
+                        continue;
+                    }
+                    pendingWrite = batch.toArray(new ByteBuffer[0]);
+                    pendingIndex = 0;
+                }
+                long written = channel.write(pendingWrite, pendingIndex, pendingWrite.length - pendingIndex);
+                while (pendingIndex < pendingWrite.length && !pendingWrite[pendingIndex].hasRemaining()) {
+                    pendingIndex++;
+                }
+                if (pendingIndex < pendingWrite.length) {
+                    if (written == 0) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    continue; // Partial write (e.g. more frames than one writev takes); try again
+                }
+                pendingWrite = null;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            updateReadInterest();
+        } catch (IOException e) {
+            Log.error("Client error: " + e.getMessage());
+            close();
+            return;
+        }
+
+        if (closeAfterFlush) {
+            close();
+        }
+    }
+
+    void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try { channel.close(); } catch (IOException ignored) {} // Ignore exception here. It's closing anyway.
+        outbound.close();
+        // A command still waiting for another node may yet log in or join; resume() cleans up after it.
+        if (handler != null && !handler.isWaiting()) {
+            handler.onDisconnect();
+        }
+    }
+}
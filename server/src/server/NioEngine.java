@@ -0,0 +1,73 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/*
+ * Non-blocking alternative to the thread-per-connection accept loop in Server.
+ * The calling thread accepts connections and hands each one to a small fixed set of
+ * event loops (round robin). Each loop owns a Selector and does all reads, command
+ * handling and socket writes for its connections, so the thread count no longer
+ * grows with the number of clients.
+ */
+public class NioEngine {
+    private final Server server;
+    private final NioEventLoop[] loops;
+    private volatile boolean running = true;
+    private Selector acceptSelector;
+
+    public NioEngine(Server server, int loopCount) {
+        this.server = server;
+        this.loops = new NioEventLoop[loopCount];
+    }
+
+    // Bind the port and run the accept loop on the calling thread until stop() is called.
+    public void run(int port) throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop(server, i);
+            loops[i].start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open();
+             Selector selector = Selector.open()) {
+            acceptSelector = selector;
+            serverChannel.bind(new InetSocketAddress(port), Server.ACCEPT_BACKLOG);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+            int next = 0;
+            while (running) {
+                selector.select();
+                selector.selectedKeys().clear();
+
+                // Accept everything that is pending, then go back to waiting.
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    Log.info("New client: " + channel.getRemoteAddress());
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    loops[next].register(channel);
+                    next = (next + 1) % loops.length;
+                }
+            }
+        } finally {
+            for (NioEventLoop loop : loops) {
+                if (loop != null) {
+                    loop.shutdown();
+                }
+            }
+        }
+    }
+
+    public void stop() {
+        running = false;
+        Selector selector = acceptSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * One selector thread serving many connections. Other threads never touch the selector
+ * directly: new channels, "please flush" requests and tasks are queued and the selector is woken.
+ */
+public class NioEventLoop extends Thread {
+    private final Server server;
+    private final Selector selector;
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    private final Queue<NioConnection> pendingFlushes = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    public NioEventLoop(Server server, int index) throws IOException {
+        super("nio-loop-" + index);
+        this.server = server;
+        this.selector = Selector.open();
+        setDaemon(true);
+    }
+
+    // Called from the accept thread.
+    void register(SocketChannel channel) {
+        pendingChannels.add(channel);
+        selector.wakeup();
+    }
+
+    // Called from any thread that queued output for a connection owned by this loop.
+    void requestFlush(NioConnection connection) {
+        pendingFlushes.add(connection);
+        if (Thread.currentThread() != this) {
+            selector.wakeup();
+        }
+    }
+
+    // Called from any thread to run a task on this loop, e.g. the rest of a command once
+    // another node of the cluster replied.
+    void execute(Runnable task) {
+        pendingTasks.add(task);
+        if (Thread.currentThread() != this) {
+            selector.wakeup();
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                registerPending();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    var connection = (NioConnection) key.attachment();
+                    if (!key.isValid()) {
+                        connection.close();
+                        continue;
+                    }
+                    if (key.isReadable()) {
+                        connection.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flush();
+                    }
+                }
+
+                Runnable task;
+                while ((task = pendingTasks.poll()) != null) {
+                    task.run();
+                }
+
+                // Flush whatever other loops (broadcasts), our own handlers or tasks queued.
+                NioConnection connection;
+                while ((connection = pendingFlushes.poll()) != null) {
+                    connection.flush();
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            Log.error("Event loop error: " + e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                ((NioConnection) key.attachment()).close();
+            }
+            try { selector.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            try {
+                var connection = new NioConnection(channel, this, server);
+                connection.open(channel.register(selector, SelectionKey.OP_READ, connection));
+            } catch (IOException e) {
+                Log.error("Client error: " + e.getMessage());
+                try { channel.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+}
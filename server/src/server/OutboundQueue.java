@@ -0,0 +1,304 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Bounded queue of encoded lines (frames) waiting to be written to one client.
+ * Anyone (the client's own handler, or another client's broadcast) can offer a frame without
+ * touching the socket. A single writer drains everything queued so far and sends it in one
+ * write. What happens when a slow reader lets broadcasts pile up is set by the overflow policy.
+ *
+ * Replies to the client's own commands (offerReply()) don't count against the capacity and are
+ * never refused: a client that pipelines a few big requests is not a slow reader. Instead the
+ * engines stop reading its commands while its replies back up (hasReplyBacklog(),
+ * awaitReplyRoom()), so those are bounded by what it asks for.
+ *
+ * Frames are read-only UTF-8 buffers that already end with the line separator. A broadcast
+ * encodes its line once and every member queues its own duplicate() of the same bytes.
+ * After offerThenCompress() the writer gets everything past that frame deflated (StreamCompressor).
+ */
+public class OutboundQueue {
+    public enum OverflowPolicy {
+        DROP_OLDEST, // Throw away the oldest queued broadcast to make room
+        DISCONNECT,  // Give up on the slow client and close its connection
+        BLOCK        // Make the sender wait for room (the old behaviour)
+    }
+
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+    private static final byte[] SEPARATOR_BYTES = LINE_SEPARATOR.getBytes(StandardCharsets.UTF_8);
+
+    private final ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+    private final ArrayDeque<Boolean> replyFlags = new ArrayDeque<>(); // One per frame: true for a reply
+    private int broadcasts = 0; // Frames in the queue offered with offer()
+    private int replies = 0;    // Frames in the queue offered with offerReply()
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final Runnable scheduleDrain; // Asks the writer to start draining
+    private final Runnable disconnect;    // Used by the DISCONNECT policy
+    private boolean draining = false;     // True from the first offer until the writer finds the queue empty
+    private boolean closed = false;
+    private long dropped = 0;
+    private volatile StreamCompressor compressor = null; // Set by COMPRESS
+
+    public OutboundQueue(int capacity, OverflowPolicy policy, Runnable scheduleDrain, Runnable disconnect) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.scheduleDrain = scheduleDrain;
+        this.disconnect = disconnect;
+    }
+
+    // Encode one protocol line into a frame that can be queued for any number of clients.
+    public static ByteBuffer encode(String line) {
+        return ByteBuffer.wrap((line + LINE_SEPARATOR).getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    // A copy of an encoded frame with prefix in front of it.
+    public static ByteBuffer prepend(String prefix, ByteBuffer frame) {
+        byte[] head = prefix.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = frame.duplicate();
+        byte[] bytes = new byte[head.length + body.remaining()];
+        System.arraycopy(head, 0, bytes, 0, head.length);
+        body.get(bytes, head.length, bytes.length - head.length);
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    // Same as encode(prefix + body) for a body that is already UTF-8.
+    public static ByteBuffer encode(String prefix, byte[] body) {
+        byte[] head = prefix.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[head.length + body.length + SEPARATOR_BYTES.length];
+        System.arraycopy(head, 0, bytes, 0, head.length);
+        System.arraycopy(body, 0, bytes, head.length, body.length);
+        System.arraycopy(SEPARATOR_BYTES, 0, bytes, head.length + body.length, SEPARATOR_BYTES.length);
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    // Same as encode(prefix + body) for the UTF-8 bytes body[start, end) with [cutStart, cutEnd)
+    // left out (an empty cut leaves nothing out).
+    public static ByteBuffer encode(String prefix, byte[] body, int start, int end, int cutStart, int cutEnd) {
+        byte[] head = prefix.getBytes(StandardCharsets.UTF_8);
+        int before = cutStart - start;
+        int after = end - cutEnd;
+        byte[] bytes = new byte[head.length + before + after + SEPARATOR_BYTES.length];
+        System.arraycopy(head, 0, bytes, 0, head.length);
+        System.arraycopy(body, start, bytes, head.length, before);
+        System.arraycopy(body, cutEnd, bytes, head.length + before, after);
+        System.arraycopy(SEPARATOR_BYTES, 0, bytes, bytes.length - SEPARATOR_BYTES.length, SEPARATOR_BYTES.length);
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    // Several frames as one, e.g. a counted reply (a header line and its entries), so it takes a
+    // single place in the queue.
+    public static ByteBuffer join(List<ByteBuffer> parts) {
+        int length = 0;
+        for (ByteBuffer part : parts) {
+            length += part.remaining();
+        }
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        for (ByteBuffer part : parts) {
+            int n = part.remaining();
+            part.duplicate().get(bytes, offset, n);
+            offset += n;
+        }
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    // Queue a broadcast (or any frame not asked for by the client). The queue owns the buffer's
+    // position, so shared frames must be passed as a duplicate(). Returns false if the frame
+    // was not queued because the client is gone.
+    public boolean offer(ByteBuffer frame) {
+        return offer(frame, false);
+    }
+
+    // Queue a reply to one of the client's own commands. The overflow policy does not apply.
+    public boolean offerReply(ByteBuffer frame) {
+        return offer(frame, true);
+    }
+
+    private boolean offer(ByteBuffer frame, boolean reply) {
+        boolean schedule = false;
+        boolean overflowed = false;
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            if (!reply && broadcasts >= capacity) {
+                switch (policy) {
+                    case DROP_OLDEST:
+                        dropOldestBroadcast();
+                        break;
+                    case DISCONNECT:
+                        closed = true;
+                        clear();
+                        notifyAll();
+                        overflowed = true;
+                        break;
+                    case BLOCK:
+                        while (broadcasts >= capacity && !closed) {
+                            try {
+                                wait();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                return false;
+                            }
+                        }
+                        if (closed) {
+                            return false;
+                        }
+                        break;
+                }
+            }
+            if (!overflowed) {
+                frames.add(frame);
+                replyFlags.add(reply);
+                if (reply) {
+                    replies++;
+                } else {
+                    broadcasts++;
+                }
+                if (!draining) {
+                    draining = true;
+                    schedule = true;
+                }
+            }
+        }
+
+        // Callbacks run outside the lock so they can take their own locks.
+        if (overflowed) {
+            disconnect.run();
+            return false;
+        }
+        if (schedule) {
+            scheduleDrain.run();
+        }
+        return true;
+    }
+
+    // Remove the oldest frame offered with offer(). Replies stay, so a client never loses an
+    // answer it waits for, nor the OK COMPRESS or BINARY reply that the frames after it rely on.
+    private void dropOldestBroadcast() {
+        var frameIterator = frames.iterator();
+        var replyIterator = replyFlags.iterator();
+        while (frameIterator.hasNext()) {
+            frameIterator.next();
+            if (!replyIterator.next()) {
+                frameIterator.remove();
+                replyIterator.remove();
+                broadcasts--;
+                dropped++;
+                return;
+            }
+        }
+    }
+
+    // Queue frame, then compress everything that follows it at the given deflate level.
+    // Returns false if the connection already compresses (or is gone).
+    public boolean offerThenCompress(ByteBuffer frame, int level) {
+        synchronized (this) {
+            if (compressor != null || closed) {
+                return false;
+            }
+            compressor = new StreamCompressor(frame, level);
+        }
+        return offerReply(frame);
+    }
+
+    public boolean isCompressing() {
+        return compressor != null;
+    }
+
+    // Take everything queued so far (in order), compressed if COMPRESS is on. Called by the
+    // writer only, so compressing runs outside the lock without holding up senders.
+    public List<ByteBuffer> drain() {
+        List<ByteBuffer> batch;
+        synchronized (this) {
+            batch = new ArrayList<>(frames);
+            clear();
+            notifyAll(); // Wake senders blocked on a full queue, and readers waiting for reply room
+        }
+        StreamCompressor current = compressor;
+        return current == null || batch.isEmpty() ? batch : current.compress(batch);
+    }
+
+    // Called by the writer after a drain. Returns true (and goes idle) if nothing new was queued,
+    // so the next offer schedules the writer again; false means the writer should drain again.
+    public synchronized boolean finishDrain() {
+        if (frames.isEmpty() || closed) {
+            draining = false;
+            notifyAll();
+            return true;
+        }
+        return false;
+    }
+
+    // True once the client's unsent replies fill the capacity: the NIO engine stops reading
+    // its commands until the writer catches up.
+    public synchronized boolean hasReplyBacklog() {
+        return replies >= capacity;
+    }
+
+    // Same for the blocking engine, whose reader thread waits here before reading more commands.
+    public synchronized void awaitReplyRoom() throws InterruptedException {
+        while (replies >= capacity && !closed) {
+            wait();
+        }
+    }
+
+    // Wait until the writer has sent everything queued so far, or the timeout runs out.
+    public synchronized void awaitDrained(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (draining && !closed) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Stop accepting frames and release anyone blocked on the queue.
+    public synchronized void close() {
+        closed = true;
+        clear();
+        notifyAll();
+        if (compressor != null) {
+            compressor.end();
+        }
+    }
+
+    private void clear() {
+        frames.clear();
+        replyFlags.clear();
+        broadcasts = 0;
+        replies = 0;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    // Copy a batch of frames into one array so the blocking writer can send it with one write.
+    public static byte[] coalesce(List<ByteBuffer> batch) {
+        int length = 0;
+        for (ByteBuffer frame : batch) {
+            length += frame.remaining();
+        }
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        for (ByteBuffer frame : batch) {
+            int n = frame.remaining();
+            frame.get(bytes, offset, n);
+            offset += n;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,100 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/*
+ * The outgoing connection to one other node of the cluster.
+ *
+ * send() only queues the event; the link's own thread writes the queue to the socket in batches,
+ * so client threads never wait on another node. Events go out in the order they were queued.
+ * While the peer can't be reached the link keeps retrying and drops what is sent meanwhile:
+ * when it connects again it first sends a snapshot of this node's state (Cluster.snapshot())
+ * so the peer can rebuild its view.
+ */
+public class PeerLink implements Runnable {
+    private static final int MAX_QUEUED = 100_000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final long RETRY_MILLIS = 500;
+
+    private final Cluster cluster;
+    private final int peerId;
+    private final InetSocketAddress address;
+    private final LinkedBlockingQueue<String[]> queue = new LinkedBlockingQueue<>(MAX_QUEUED);
+    private volatile boolean connected = false;
+
+    public PeerLink(Cluster cluster, int peerId, InetSocketAddress address) {
+        this.cluster = cluster;
+        this.peerId = peerId;
+        this.address = address;
+    }
+
+    public int getPeerId() {
+        return peerId;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    // Queue one event for the peer. Dropped while the link is down or if the peer stopped reading.
+    public void send(String... fields) {
+        if (connected && !queue.offer(fields)) {
+            Log.warn("Cluster link to node " + peerId + " is full, dropping " + fields[0]);
+        }
+    }
+
+    @Override
+    public void run() {
+        boolean warned = false;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                var out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                queue.clear();
+                // Events queued from here on come after the snapshot, so nothing is lost in between
+                // (an event may be in both, which the peer ignores).
+                connected = true;
+                Cluster.write(out, "HELLO", Integer.toString(cluster.getNodeId()));
+                for (String[] event : cluster.snapshot()) {
+                    Cluster.write(out, event);
+                }
+                out.flush();
+                Log.info("Cluster link to node " + peerId + " up (" + address + ")");
+                warned = false;
+
+                List<String[]> batch = new ArrayList<>();
+                while (true) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch);
+                    for (String[] event : batch) {
+                        Cluster.write(out, event);
+                    }
+                    out.flush();
+                    batch.clear();
+                }
+            } catch (IOException e) {
+                if (connected || !warned) {
+                    Log.warn("Cluster link to node " + peerId + " down: " + e.getMessage());
+                    warned = true;
+                }
+                connected = false;
+            } catch (InterruptedException e) {
+                connected = false;
+                return;
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
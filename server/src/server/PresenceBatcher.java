@@ -0,0 +1,135 @@
+package server;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Presence batching (--presence-window): instead of one USER_JOINED or USER_LEFT line per
+ * member per change, a group's joins and leaves are gathered for a short window and sent as
+ * one line, "USERS_DELTA <group_id> +a,+b,-c". A thousand clients rejoining after a restart
+ * then cost a few lines per member instead of a thousand.
+ *
+ * The window starts at the first change of a group and ends after windowMillis, or as soon as
+ * maxChanges names are waiting, so a line never lists more than maxChanges names. A name that
+ * changes twice in one window is only listed once, with its last change. Clients apply the
+ * changes in order: adding a name they already have or removing one they don't does nothing.
+ * Like USER_JOINED/USER_LEFT, a member is not told about its own change: its line leaves its
+ * own name out.
+ *
+ * Every batch of every group is sent by the one flusher thread, a full batch as soon as it is
+ * handed over and the others when their window ends, so a group's lines go out in the order
+ * their batches were started.
+ */
+public class PresenceBatcher {
+    private final long windowMillis;
+    private final int maxChanges;
+    private final Map<Group, Batch> pending = new HashMap<>(); // Guarded by this
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+        var t = new Thread(task, "presence-flusher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Changes of one group waiting to be sent, by username.
+    private static final class Batch {
+        final LinkedHashMap<String, Change> changes = new LinkedHashMap<>();
+    }
+
+    private static final class Change {
+        final boolean joined;
+        final ClientHandler client; // The member who joined or left, or null for one on another node
+
+        Change(boolean joined, ClientHandler client) {
+            this.joined = joined;
+            this.client = client;
+        }
+    }
+
+    public PresenceBatcher(long windowMillis, int maxChanges) {
+        this.windowMillis = windowMillis;
+        this.maxChanges = maxChanges;
+    }
+
+    // client is null for a member on another node of the cluster.
+    public void joined(Group group, String username, ClientHandler client) {
+        change(group, username, new Change(true, client));
+    }
+
+    public void left(Group group, String username, ClientHandler client) {
+        change(group, username, new Change(false, client));
+    }
+
+    private synchronized void change(Group group, String username, Change change) {
+        Batch batch = pending.get(group);
+        if (batch == null) {
+            batch = new Batch();
+            pending.put(group, batch);
+            Batch started = batch;
+            timer.schedule(() -> flush(group, started), windowMillis, TimeUnit.MILLISECONDS);
+        }
+        batch.changes.remove(username); // Keep the names in the order of their last change
+        batch.changes.put(username, change);
+        if (batch.changes.size() >= maxChanges) {
+            // Sent by the flusher too, ahead of any batch started after it.
+            pending.remove(group);
+            Batch full = batch;
+            timer.execute(() -> send(group, full));
+        }
+    }
+
+    // The window of this batch is over, unless it was already sent for being full.
+    private void flush(Group group, Batch batch) {
+        synchronized (this) {
+            if (!pending.remove(group, batch)) {
+                return;
+            }
+        }
+        send(group, batch);
+    }
+
+    // Called on the flusher thread only. Members whose own change is in the batch get a line
+    // without it (or none if it is the only change); everyone else shares one line.
+    private void send(Group group, Batch batch) {
+        Set<ClientHandler> changed = new HashSet<>();
+        for (Change change : batch.changes.values()) {
+            if (change.client != null && group.hasMember(change.client)) {
+                changed.add(change.client);
+            }
+        }
+        String line = line(group, batch, null);
+        group.broadcast(OutboundQueue.encode(line), BinaryProtocol.text(line), changed);
+        if (batch.changes.size() > 1) {
+            for (ClientHandler client : changed) {
+                String own = line(group, batch, client);
+                client.sendFrame(OutboundQueue.encode(own), BinaryProtocol.text(own));
+            }
+        }
+    }
+
+    // "USERS_DELTA <group_id> +a,-b", leaving out the change made by skip.
+    private static String line(Group group, Batch batch, ClientHandler skip) {
+        var line = new StringBuilder("USERS_DELTA ").append(group.getId()).append(' ');
+        boolean first = true;
+        for (Map.Entry<String, Change> change : batch.changes.entrySet()) {
+            if (skip != null && change.getValue().client == skip) {
+                continue;
+            }
+            if (!first) {
+                line.append(',');
+            }
+            line.append(change.getValue().joined ? '+' : '-').append(change.getKey());
+            first = false;
+        }
+        return line.toString();
+    }
+
+    public void stop() {
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,122 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * Inverted index over the subject and content of one group's messages, for SEARCH.
+ *
+ * Each word maps to a posting list: the ids of the messages containing it, ascending, in a
+ * growable int array (4 bytes per word per message, no boxing). Group.addMessage() adds every
+ * new message, in id order, so the index never has to be rebuilt. A search intersects the lists
+ * of its words, shortest first, walking back from the newest id so it can stop after limit matches.
+ *
+ * Words are runs of letters and digits, lowercased; longer words than MAX_WORD_LENGTH are
+ * not indexed. Adds and searches take the index's lock; a search over the longest lists in a
+ * group of millions of messages holds it for a few milliseconds.
+ */
+public class SearchIndex {
+    static final int MAX_WORD_LENGTH = 64;
+    private static final int INITIAL_POSTINGS = 4;
+
+    private final Map<String, Postings> words = new HashMap<>();
+
+    // Ascending message ids containing one word.
+    private static final class Postings {
+        int[] ids = new int[INITIAL_POSTINGS];
+        int size = 0;
+
+        // Messages are added in id order (Server.post() takes the id and appends under the
+        // group's lock), so a new id is either the last one again or larger.
+        void add(int id) {
+            if (size > 0 && ids[size - 1] == id) {
+                return; // Word seen earlier in the same message
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+    }
+
+    public synchronized void add(Message message) {
+        int id = message.getId();
+        addWords(message.getSubject(), id);
+        addWords(message.getContent(), id);
+    }
+
+    private void addWords(String text, int id) {
+        for (String word : words(text)) {
+            words.computeIfAbsent(word, w -> new Postings()).add(id);
+        }
+    }
+
+    // Ids of the newest messages (at most limit) containing every word of the query, oldest first.
+    // Empty if the query has no words.
+    public synchronized int[] search(String query, int limit) {
+        List<String> terms = words(query);
+        if (terms.isEmpty()) {
+            return new int[0];
+        }
+        Postings[] lists = new Postings[terms.size()];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = words.get(terms.get(i));
+            if (lists[i] == null) {
+                return new int[0];
+            }
+        }
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+
+        // Walk the shortest list from its newest id and look each one up in the others.
+        // positions[i] only moves down, so every list is searched in a shrinking range.
+        int[] positions = new int[lists.length];
+        for (int i = 0; i < lists.length; i++) {
+            positions[i] = lists[i].size;
+        }
+        int[] found = new int[Math.min(limit, lists[0].size)];
+        int count = 0;
+        Postings shortest = lists[0];
+        for (int p = shortest.size - 1; p >= 0 && count < found.length; p--) {
+            int id = shortest.ids[p];
+            boolean inAll = true;
+            for (int i = 1; i < lists.length && inAll; i++) {
+                int at = Arrays.binarySearch(lists[i].ids, 0, positions[i], id);
+                positions[i] = at >= 0 ? at : -at - 1;
+                inAll = at >= 0;
+            }
+            if (inAll) {
+                found[count++] = id;
+            }
+        }
+
+        int[] result = new int[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = found[count - 1 - i];
+        }
+        return result;
+    }
+
+    // Lowercased runs of letters and digits, in order of appearance (repeats included).
+    static List<String> words(String text) {
+        List<String> result = new ArrayList<>();
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            if (i > start && i - start <= MAX_WORD_LENGTH) {
+                result.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+            }
+        }
+        return result;
+    }
+}
@@ -1,106 +1,574 @@
 package server;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Path;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Server {
+    static final int BUILT_IN_GROUPS = 5; // Group 1 to Group 5, on every node of a cluster
+    static final int ACCEPT_BACKLOG = 1024; // Pending connections the OS may queue, e.g. during a reconnect storm
+    private final ServerConfig config;
     private final int port;
     private final List<ClientHandler> clients = new CopyOnWriteArrayList<>(); // Thread safe list
-    private final List<Group> groups = new CopyOnWriteArrayList<>(); // Thread safe group list
+    private final MessageIndex messageIndex = new MessageIndex(); // Message id -> (group, message)
+    private final Metrics metrics = new Metrics(this); // Counters and latency histograms (STATS, JMX)
+    private final GroupRegistry groups = new GroupRegistry(messageIndex, metrics.getFanoutTimes()); // Groups by id and by name
+    private final UsernameRegistry usernames = new UsernameRegistry(); // Names of logged in clients
     private volatile boolean running = true; // Sets if the while loop should continue.
                                              // Also silences an infinite loop warning.
+    private volatile NioEngine nioEngine; // Only set when running with --engine=nio
+    private Executor writerExecutor; // Drains client outbound queues in the blocking engine
+    private MessageJournal journal; // Null unless started with --journal
+    private ContentStore contentStore; // Null unless started with --content-store
+    private final Cluster cluster; // Null unless started with --cluster
+    private final PresenceBatcher presence; // Null unless started with --presence-window
 
     public Server(int port) {
-        this.port = port;
+        this(ServerConfig.forPort(port));
+    }
+
+    public Server(ServerConfig config) {
+        this.config = config;
+        this.port = config.getPort();
+        Log.configure(config.getLogLevel(), config.getLogSample());
+        // Before any message exists: the cluster decides which ids this node hands out.
+        this.cluster = config.getClusterNodes().isEmpty() ? null
+                : new Cluster(this, config.getNodeId(), config.getClusterNodes());
+        this.presence = config.getPresenceWindowMillis() == 0 ? null
+                : new PresenceBatcher(config.getPresenceWindowMillis(), config.getPresenceMaxChanges());
         initGroups();
     }
 
     private void initGroups() {
-        groups.add(new Group(1, "Group 1"));
-        groups.add(new Group(2, "Group 2"));
-        groups.add(new Group(3, "Group 3"));
-        groups.add(new Group(4, "Group 4"));
-        groups.add(new Group(5, "Group 5"));
+        // Built-in groups. More can be created with CREATE_GROUP.
+        for (int id = 1; id <= BUILT_IN_GROUPS; id++) {
+            groups.add(id, "Group " + id);
+        }
+
+        if (config.getContentStoreDir() != null) {
+            openContentStore(); // Before the journal replays messages into it
+        }
+        if (config.getJournalDir() != null) {
+            openJournal();
+        }
+    }
+
+    // Open the journal and replay it so groups get back every message posted before a restart.
+    private void openJournal() {
+        try {
+            journal = new MessageJournal(Path.of(config.getJournalDir()), config.getDurability(), config.getFsyncIntervalMillis());
+            int[] replayed = {0};
+            journal.replay(new MessageJournal.ReplayHandler() {
+                @Override
+                public void onMessage(int groupId, Message message) {
+                    Group group = groups.get(groupId);
+                    if (group != null) {
+                        group.addMessage(message);
+                        storeContent(message);
+                        replayed[0]++;
+                    }
+                }
+
+                @Override
+                public void onGroupCreated(int groupId, String name) {
+                    groups.add(groupId, name);
+                }
+
+                @Override
+                public void onGroupDeleted(int groupId) {
+                    Group group = groups.get(groupId);
+                    if (group != null) {
+                        groups.remove(group);
+                        messageIndex.removeGroup(group);
+                    }
+                }
+            });
+            Log.info("Journal replayed " + replayed[0] + " messages from " + config.getJournalDir());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open journal: " + e.getMessage(), e);
+        }
+    }
+
+    // Open the store message contents move to once posted.
+    private void openContentStore() {
+        try {
+            contentStore = new ContentStore(Path.of(config.getContentStoreDir()), config.getContentCacheBytes());
+            Log.info("Message contents stored in " + config.getContentStoreDir()
+                    + " (" + config.getContentCacheBytes() / (1024 * 1024) + " MB cache)");
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open content store: " + e.getMessage(), e);
+        }
     }
 
-    // Start the server. Open the ServerSocket and accept connections.
+    // Move a stored message's content off the heap, if there is a content store.
+    private void storeContent(Message message) {
+        if (contentStore != null) {
+            try {
+                message.moveContent(contentStore);
+            } catch (IOException e) {
+                // The content just stays on the heap.
+                Log.error("Content store error: " + e.getMessage());
+            }
+        }
+    }
+
+    ContentStore getContentStore() {
+        return contentStore;
+    }
+
+    // Start the server with the engine picked in the config.
     public void start() throws IOException {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
+        metrics.register();
+        if (cluster != null) {
+            cluster.start();
+        }
+        if (config.getEngine() == ServerConfig.Engine.NIO) {
+            nioEngine = new NioEngine(this, config.getEventLoops());
+            Log.info("Server started on port " + port + " (nio, " + config.getEventLoops() + " loops)");
+            nioEngine.run(port);
+            return;
+        }
+        startBlocking();
+    }
+
+    // Open the ServerSocket and accept connections, one thread (or executor task) per client.
+    private void startBlocking() throws IOException {
+        ExecutorService executor = createClientExecutor();
+        writerExecutor = createWriterExecutor();
+        try (ServerSocket serverSocket = new ServerSocket(port, ACCEPT_BACKLOG)) {
             // Main accept loop: runs indefinitely
-            System.out.println("Server started on port " + port);
+            Log.info("Server started on port " + port + " (" + config.getExecutor().name().toLowerCase() + ")");
             while (running) {
                 // Wait for a client to connect (blocking call)
                 Socket socket = serverSocket.accept();
-                System.out.println("New client: " + socket.getRemoteSocketAddress());
+                Log.info("New client: " + socket.getRemoteSocketAddress());
+                // Multi-line replies go out as several writes; don't let Nagle hold them back.
+                socket.setTcpNoDelay(true);
 
                 // Create a new ClientHandler to handle the client connection.
                 var clientHandler = new ClientHandler(socket, this);
-                clients.add(clientHandler);
+                add(clientHandler);
 
-                // Start a new thread for the client.
-                var t = new Thread(clientHandler);
-                t.start();
+                if (executor == null) {
+                    // Start a new thread for the client.
+                    var t = new Thread(clientHandler);
+                    t.start();
+                } else {
+                    executor.execute(clientHandler);
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
             }
         }
     }
 
+    // Returns null for the default one-thread-per-client mode.
+    private ExecutorService createClientExecutor() {
+        switch (config.getExecutor()) {
+            case VIRTUAL:
+                // Looked up reflectively so the server still compiles and runs on Java 17
+                // when this mode is not used.
+                try {
+                    return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException("--executor=virtual needs Java 21 or newer");
+                }
+            case POOL:
+                return Executors.newFixedThreadPool(config.getPoolSize());
+            default:
+                return null;
+        }
+    }
+
+    // Writers only run while a client has queued output, so a few threads cover many clients.
+    // A writer stuck on a slow client only holds its own thread, never the sender's.
+    private Executor createWriterExecutor() {
+        if (config.getExecutor() == ServerConfig.Executor.VIRTUAL) {
+            return createClientExecutor();
+        }
+        return Executors.newCachedThreadPool(task -> {
+            var t = new Thread(task, "client-writer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    Executor getWriterExecutor() {
+        return writerExecutor;
+    }
+
     // Stops the server.
     public void stop() {
         running = false;
+        if (nioEngine != null) {
+            nioEngine.stop();
+        }
+        if (journal != null) {
+            try { journal.close(); } catch (IOException ignored) {}
+        }
+        if (presence != null) {
+            presence.stop();
+        }
+        if (contentStore != null) {
+            try { contentStore.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // Store a new message: journal it (if enabled) and add it to the group's history.
+    // Messages of a group must be stored in id order (history paging and SEARCH look them up by
+    // binary search), so a message created concurrently with others goes through post() instead.
+    public void postMessage(Group group, Message message) {
+        awaitJournal(appendMessage(group, message));
+        storeContent(message);
+    }
+
+    // Journal the message and add it to the group's history, without waiting for the journal's
+    // fsync. Returns the journal ticket for awaitJournal(), or 0 without a journal.
+    private long appendMessage(Group group, Message message) {
+        long ticket = 0;
+        if (journal != null) {
+            try {
+                ticket = journal.append(group.getId(), message);
+            } catch (IOException e) {
+                // Keep the board running; the message just won't survive a restart.
+                Log.error("Journal error: " + e.getMessage());
+            }
+        }
+        group.addMessage(message);
+        return ticket;
+    }
+
+    // With --durability=group, wait until the message is on disk.
+    private void awaitJournal(long ticket) {
+        if (ticket != 0) {
+            try {
+                journal.awaitForced(ticket);
+            } catch (IOException e) {
+                Log.error("Journal error: " + e.getMessage());
+            }
+        }
+    }
+
+    // Post a new message from a client: store it and broadcast its summary to every other member.
+    // In a cluster the group's owner gives the message its id and copies it to the other nodes,
+    // which broadcast it to their members.
+    public Message post(Group group, ClientHandler sender, String subject, String content) {
+        return post(group, sender.username, sender, subject, content);
+    }
+
+    // Same, for a post another node forwarded (sender is null then).
+    Message post(Group group, String senderName, ClientHandler sender, String subject, String content) {
+        return Cluster.await(postAsync(group, senderName, sender, subject, content));
+    }
+
+    // Same, without waiting for the group's owner when that is another node: the future completes
+    // once its reply is in. A post sequenced here is done when this returns.
+    // Taking the id and appending to the group's history happen under the group's lock, so the
+    // history stays in id order however many clients post at once. The journal's fsync (with
+    // --durability=group) is waited for after the lock, before the reply and the broadcast.
+    CompletableFuture<Message> postAsync(Group group, String senderName, ClientHandler sender, String subject,
+            String content) {
+        Message message;
+        long ticket;
+        if (cluster == null || cluster.ownsGroup(group)) {
+            synchronized (group) {
+                message = new Message(senderName, subject, content);
+                ticket = appendMessage(group, message);
+                if (cluster != null) {
+                    // Ids must reach the other nodes in the order they were given out.
+                    cluster.replicateMessage(group, message);
+                }
+            }
+        } else {
+            // The owner's copy of the message arrives (applyRemoteMessage) before its reply.
+            return cluster.forwardPost(group, senderName, subject, content).thenApply(id -> {
+                MessageIndex.Entry entry = messageIndex.get(id);
+                if (entry == null) {
+                    throw new ClusterException("Message from the owner of group " + group.getId() + " was lost");
+                }
+                return entry.getMessage();
+            });
+        }
+        awaitJournal(ticket);
+        storeContent(message);
+        broadcastMessage(group, message, sender);
+        return CompletableFuture.completedFuture(message);
+    }
+
+    // A message another node sequenced: store it and broadcast it to the members here.
+    void applyRemoteMessage(int groupId, Message message) {
+        Group group = groups.get(groupId);
+        if (group != null) {
+            postMessage(group, message);
+            broadcastMessage(group, message, usernames.get(message.getSender()));
+        }
+    }
+
+    private static void broadcastMessage(Group group, Message message, ClientHandler sender) {
+        group.broadcast(message.summaryFrame("NEW_MESSAGE " + group.getId() + " "),
+                BinaryProtocol.newMessage(group.getId(), message), sender);
+    }
+
+    // Tell the other nodes of the cluster a local client joined or left a group.
+    public void memberJoined(Group group, ClientHandler client) {
+        if (cluster != null) {
+            cluster.memberJoined(group, client.username);
+        }
+    }
+
+    public void memberLeft(Group group, ClientHandler client) {
+        if (cluster != null) {
+            cluster.memberLeft(group, client.username);
+        }
+    }
+
+    // Tell a group's members (but not client, if given) that someone joined or left:
+    // right away, or in the next USERS_DELTA line with --presence-window.
+    public void announceJoin(Group group, String username, ClientHandler client) {
+        if (presence != null) {
+            presence.joined(group, username, client);
+        } else {
+            group.broadcast("USER_JOINED " + group.getId() + " " + username, client);
+        }
+    }
+
+    public void announceLeave(Group group, String username, ClientHandler client) {
+        if (presence != null) {
+            presence.left(group, username, client);
+        } else {
+            group.broadcast("USER_LEFT " + group.getId() + " " + username, client);
+        }
+    }
+
+    void applyRemoteJoin(int groupId, String username, int nodeId) {
+        Group group = groups.get(groupId);
+        if (group != null && group.addRemoteMember(username, nodeId)) {
+            announceJoin(group, username, null);
+        }
+    }
+
+    void applyRemoteLeave(int groupId, String username, int nodeId) {
+        Group group = groups.get(groupId);
+        if (group != null && group.removeRemoteMember(username, nodeId)) {
+            announceLeave(group, username, null);
+        }
+    }
+
+    // A node left the cluster: its users leave every group here.
+    void removeRemoteMembers(int nodeId) {
+        for (Group group : groups.all()) {
+            for (String username : group.removeRemoteMembers(nodeId)) {
+                announceLeave(group, username, null);
+            }
+        }
+    }
+
+    // Create a new group. Returns null if the name is already taken.
+    // In a cluster only one node creates groups; the others ask it to.
+    public Group createGroup(String name) {
+        return Cluster.await(createGroupAsync(name));
+    }
+
+    // Same, without waiting for the registry node when that is another node.
+    public CompletableFuture<Group> createGroupAsync(String name) {
+        if (cluster != null && !cluster.ownsGroupRegistry()) {
+            return cluster.forwardCreateGroup(name).thenApply(id -> id > 0 ? groups.get(id) : null);
+        }
+        Group group = groups.create(name);
+        if (group != null) {
+            journalGroupCreated(group);
+            if (cluster != null) {
+                cluster.groupCreated(group);
+            }
+        }
+        return CompletableFuture.completedFuture(group);
+    }
+
+    // A group the cluster's registry node created.
+    void applyGroupCreated(int id, String name) {
+        Group group = groups.add(id, name);
+        if (group != null) {
+            journalGroupCreated(group);
+        }
+    }
+
+    private void journalGroupCreated(Group group) {
+        if (journal != null) {
+            try {
+                journal.appendGroupCreated(group.getId(), group.getName());
+            } catch (IOException e) {
+                Log.error("Journal error: " + e.getMessage());
+            }
+        }
+    }
+
+    // Delete a group and forget its messages.
+    public void deleteGroup(Group group) {
+        Cluster.await(deleteGroupAsync(group));
+    }
+
+    // Same, without waiting for the registry node when that is another node.
+    public CompletableFuture<Void> deleteGroupAsync(Group group) {
+        if (cluster != null && !cluster.ownsGroupRegistry()) {
+            return cluster.forwardDeleteGroup(group); // The registry's UNGROUP arrives before its reply
+        }
+        removeGroup(group);
+        if (cluster != null) {
+            cluster.groupDeleted(group);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    void applyGroupDeleted(int id) {
+        Group group = groups.get(id);
+        if (group != null) {
+            removeGroup(group);
+        }
+    }
+
+    private void removeGroup(Group group) {
+        groups.remove(group);
+        messageIndex.removeGroup(group);
+        if (journal != null) {
+            try {
+                journal.appendGroupDeleted(group.getId());
+            } catch (IOException e) {
+                Log.error("Journal error: " + e.getMessage());
+            }
+        }
+    }
+
+    // Called when a client connects.
+    void add(ClientHandler client) {
+        clients.add(client);
+    }
+
+    // Every connected client
+    public List<ClientHandler> getClients() {
+        return clients;
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    public int getUsernameCount() {
+        return usernames.size();
+    }
+
+    public int getGroupCount() {
+        return groups.size();
+    }
+
+    public int getMessageCount() {
+        return messageIndex.size();
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
     }
 
     // Called when a client is finished.
     public void remove(ClientHandler client) {
         clients.remove(client);
-        // Remove from all groups
-        for (Group group : groups) {
+        if (client.username != null) {
+            usernames.release(client.username, client);
+            if (cluster != null) {
+                cluster.releaseUsername(client.username);
+            }
+        }
+        // Remove from the groups it joined (the client keeps that list, so there's no need
+        // to look through every group)
+        for (Group group : client.getJoinedGroups()) {
             if (group.hasMember(client)) {
                 group.removeMember(client);
                 if (client.username != null) {
-                    group.broadcast("USER_LEFT " + client.username, client);
+                    announceLeave(group, client.username, client);
+                    memberLeft(group, client);
                 }
             }
         }
-        System.out.println("Client removed. Client count: " + clients.size());
+        Log.info("Client removed. Client count: " + clients.size());
     }
 
     // Check if username already exists 
     public boolean usernameExists(String username) {
-        for (ClientHandler client : clients) {
-            if (client.username != null && client.username.equalsIgnoreCase(username)) {
-                return true;
-            }
+        return usernames.contains(username);
+    }
+
+    // Atomically claim a username for a client. Completes with false if it is already taken.
+    // In a cluster the node owning the name must also agree that no other node's client has it;
+    // the future completes when it has answered.
+    public CompletableFuture<Boolean> reserveUsername(String username, ClientHandler client) {
+        if (!usernames.reserve(username, client)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        if (cluster == null) {
+            return CompletableFuture.completedFuture(true);
         }
-        return false;
+        return cluster.claimUsername(username).whenComplete((claimed, e) -> {
+            if (e != null) {
+                usernames.release(username, client);
+                cluster.releaseUsername(username); // In case the owner granted it after we gave up
+            } else if (!claimed) {
+                usernames.release(username, client);
+            }
+        });
+    }
+
+    // Get all groups, in id order
+    public Collection<Group> getGroups() {
+        return groups.all();
+    }
+
+    // Get up to limit groups with an id greater than afterId, in id order
+    public List<Group> getGroups(int afterId, int limit) {
+        return groups.page(afterId, limit);
+    }
+
+    // The group new users join automatically (lowest id), or null if there are no groups
+    // Groups every server starts with (ids 1 to BUILT_IN_GROUPS). They can't be deleted.
+    public boolean isBuiltIn(Group group) {
+        return group.getId() <= BUILT_IN_GROUPS;
     }
 
-    // Get list of all groups
-    public List<Group> getGroups() {
-        return groups;
+    public Group getDefaultGroup() {
+        return groups.first();
     }
     
     // Get group by ID or Name
     public Group getGroup(String identifier) {
-        for (Group g : groups) {
-            if (String.valueOf(g.getId()).equals(identifier) || g.getName().equalsIgnoreCase(identifier)) {
-                return g;
-            }
-        }
-        return null;
+        return groups.get(identifier);
+    }
+
+    // Get group by ID only
+    public Group getGroup(int id) {
+        return groups.get(id);
     }
 
     // Get message by ID
     public Message getMessageById(int id) {
-        for (Group group : groups) {
-            for (Message msg : group.getMessages()) {
-                if (msg.getId() == id) {
-                    return msg;
-                }
-            }
-        }
-        return null;
+        MessageIndex.Entry entry = messageIndex.get(id);
+        return entry != null ? entry.getMessage() : null;
+    }
+
+    // Get message by ID together with the group it was posted in
+    public MessageIndex.Entry findMessage(int id) {
+        return messageIndex.get(id);
     }
 }
@@ -0,0 +1,229 @@
+package server;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Startup options for the server, parsed from the command line.
+// Usage: server.Main [port] [--engine=blocking|nio] [--loops=<n>]
+//                    [--executor=thread|virtual|pool] [--pool-size=<n>]
+//                    [--outbound-capacity=<n>] [--overflow=disconnect|drop-oldest|block]
+//                    [--journal=<dir>] [--durability=async|group] [--fsync-interval=<ms>]
+//                    [--log-level=debug|info|warn|error|off] [--log-sample=<n>]
+//                    [--compress-level=<1-9>]
+//                    [--presence-window=<ms>] [--presence-max=<n>]
+//                    [--content-store=<dir>] [--content-cache=<MB>]
+//                    [--node-id=<n> --cluster=<id>@<host>:<port>,...]
+public class ServerConfig {
+    // How client connections are served.
+    public enum Engine {
+        BLOCKING, // One thread per connection, blocking reads (the original design)
+        NIO       // A few selector event loops shared by all connections
+    }
+
+    // What runs each ClientHandler in the blocking engine.
+    public enum Executor {
+        THREAD,  // A new platform thread per client (the original design)
+        VIRTUAL, // A virtual thread per client (needs Java 21+)
+        POOL     // A fixed pool of platform threads; clients beyond the pool size wait for a free thread
+    }
+
+    private int port = 8000;
+    private Engine engine = Engine.BLOCKING;
+    private int eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private Executor executor = Executor.THREAD;
+    private int poolSize = 256;
+    private int outboundCapacity = 1024;
+    private OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DISCONNECT;
+    private String journalDir = null; // No journal unless a directory is given
+    private MessageJournal.Durability durability = MessageJournal.Durability.ASYNC;
+    private long fsyncIntervalMillis = 100;
+    private Log.Level logLevel = Log.Level.INFO;
+    private int logSample = 1; // Log every client command line, as before
+    private int compressLevel = 1; // Deflate level for connections that sent COMPRESS
+    private long presenceWindowMillis = 0; // 0: a USER_JOINED/USER_LEFT line per change, as before
+    private int presenceMaxChanges = 500; // Most names in one USERS_DELTA line
+    private String contentStoreDir = null; // Message contents stay on the heap unless a directory is given
+    private long contentCacheBytes = 64L * 1024 * 1024;
+    private int nodeId = 0;
+    private Map<Integer, InetSocketAddress> clusterNodes = Collections.emptyMap(); // Empty: not clustered
+
+    public static ServerConfig parse(String[] args) {
+        var config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                // Bare argument is the port number, as before.
+                config.port = Integer.parseInt(arg);
+                continue;
+            }
+
+            String[] kv = arg.substring(2).split("=", 2);
+            String key = kv[0];
+            String value = kv.length > 1 ? kv[1] : "";
+            switch (key) {
+                case "port":
+                    config.port = Integer.parseInt(value);
+                    break;
+                case "engine":
+                    config.engine = Engine.valueOf(value.toUpperCase());
+                    break;
+                case "loops":
+                    config.eventLoops = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "executor":
+                    config.executor = Executor.valueOf(value.toUpperCase());
+                    break;
+                case "pool-size":
+                    config.poolSize = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "outbound-capacity":
+                    config.outboundCapacity = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "overflow":
+                    config.overflowPolicy = OutboundQueue.OverflowPolicy.valueOf(value.toUpperCase().replace('-', '_'));
+                    break;
+                case "journal":
+                    config.journalDir = value;
+                    break;
+                case "durability":
+                    config.durability = MessageJournal.Durability.valueOf(value.toUpperCase());
+                    break;
+                case "fsync-interval":
+                    config.fsyncIntervalMillis = Math.max(1, Long.parseLong(value));
+                    break;
+                case "log-level":
+                    config.logLevel = Log.Level.valueOf(value.toUpperCase());
+                    break;
+                case "log-sample":
+                    config.logSample = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "compress-level":
+                    config.compressLevel = Math.min(9, Math.max(1, Integer.parseInt(value)));
+                    break;
+                case "presence-window":
+                    config.presenceWindowMillis = Math.max(0, Long.parseLong(value));
+                    break;
+                case "presence-max":
+                    config.presenceMaxChanges = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "content-store":
+                    config.contentStoreDir = value;
+                    break;
+                case "content-cache":
+                    config.contentCacheBytes = Math.max(0, Long.parseLong(value)) * 1024 * 1024;
+                    break;
+                case "node-id":
+                    config.nodeId = Integer.parseInt(value);
+                    break;
+                case "cluster":
+                    config.clusterNodes = parseNodes(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (!config.clusterNodes.isEmpty() && !config.clusterNodes.containsKey(config.nodeId)) {
+            throw new IllegalArgumentException("--node-id must be one of the --cluster ids");
+        }
+        return config;
+    }
+
+    // Every node of the cluster, this one included: "1@host:port,2@host:port,...".
+    // The port is the one nodes talk to each other on, not the client port.
+    private static Map<Integer, InetSocketAddress> parseNodes(String value) {
+        Map<Integer, InetSocketAddress> nodes = new LinkedHashMap<>();
+        for (String node : value.split(",")) {
+            int at = node.indexOf('@');
+            int colon = node.lastIndexOf(':');
+            if (at < 0 || colon < at) {
+                throw new IllegalArgumentException("Bad cluster node: " + node + " (use <id>@<host>:<port>)");
+            }
+            nodes.put(Integer.parseInt(node.substring(0, at).trim()),
+                    new InetSocketAddress(node.substring(at + 1, colon), Integer.parseInt(node.substring(colon + 1))));
+        }
+        return nodes;
+    }
+
+    public static ServerConfig forPort(int port) {
+        var config = new ServerConfig();
+        config.port = port;
+        return config;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public int getOutboundCapacity() {
+        return outboundCapacity;
+    }
+
+    public OutboundQueue.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public String getJournalDir() {
+        return journalDir;
+    }
+
+    public MessageJournal.Durability getDurability() {
+        return durability;
+    }
+
+    public long getFsyncIntervalMillis() {
+        return fsyncIntervalMillis;
+    }
+
+    public Log.Level getLogLevel() {
+        return logLevel;
+    }
+
+    public int getLogSample() {
+        return logSample;
+    }
+
+    public int getCompressLevel() {
+        return compressLevel;
+    }
+
+    public long getPresenceWindowMillis() {
+        return presenceWindowMillis;
+    }
+
+    public int getPresenceMaxChanges() {
+        return presenceMaxChanges;
+    }
+
+    public String getContentStoreDir() {
+        return contentStoreDir;
+    }
+
+    public long getContentCacheBytes() {
+        return contentCacheBytes;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public Map<Integer, InetSocketAddress> getClusterNodes() {
+        return clusterNodes;
+    }
+}
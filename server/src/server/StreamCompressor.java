@@ -0,0 +1,89 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/*
+ * Deflate compression of everything sent to one client after the COMPRESS command.
+ *
+ * There is one Deflater per connection, so the whole stream shares one dictionary (zlib's
+ * 32 KB window): a history replay, or a broadcast that starts like the one before it,
+ * compresses against everything already sent. The writer passes each drained batch through
+ * compress(), which ends it with a sync flush, so the client can decode every frame of a batch
+ * as soon as the batch arrives. Small interactive replies go out right away, bulk output
+ * (many frames per batch) shrinks the most.
+ *
+ * Frames up to and including the one that turned compression on (the OK COMPRESS reply) are
+ * sent as they are, so the client knows exactly where the zlib stream starts.
+ */
+public class StreamCompressor {
+    private static final int MAX_IDLE_OUTPUT = 8192;
+
+    private final ByteBuffer startAfter; // Last frame sent uncompressed
+    private final int level;             // 1 (fastest) to 9 (smallest)
+    private Deflater deflater = null;    // Created when startAfter has been passed to the writer
+    private byte[] output = new byte[MAX_IDLE_OUTPUT];
+    private boolean ended = false;
+
+    public StreamCompressor(ByteBuffer startAfter, int level) {
+        this.startAfter = startAfter;
+        this.level = level;
+    }
+
+    // Called by the writer with each drained batch. Returns what to write instead.
+    public synchronized List<ByteBuffer> compress(List<ByteBuffer> batch) {
+        if (ended) {
+            return batch;
+        }
+        int first = 0;
+        List<ByteBuffer> result = new ArrayList<>(2);
+        if (deflater == null) {
+            // Still uncompressed up to the switch frame
+            while (first < batch.size() && deflater == null) {
+                ByteBuffer frame = batch.get(first++);
+                result.add(frame);
+                if (frame == startAfter) {
+                    deflater = new Deflater(level);
+                }
+            }
+            if (first == batch.size()) {
+                return result;
+            }
+        }
+
+        int length = 0;
+        for (int i = first; i < batch.size(); i++) {
+            deflater.setInput(batch.get(i));
+            while (!deflater.needsInput()) {
+                length = deflate(length, Deflater.NO_FLUSH);
+            }
+        }
+        // SYNC_FLUSH is done once it leaves room in the output.
+        do {
+            length = deflate(length, Deflater.SYNC_FLUSH);
+        } while (length == output.length);
+        result.add(ByteBuffer.wrap(Arrays.copyOf(output, length)).asReadOnlyBuffer());
+        if (output.length > MAX_IDLE_OUTPUT) {
+            output = new byte[MAX_IDLE_OUTPUT]; // Don't keep a replay-sized buffer per client
+        }
+        return result;
+    }
+
+    private int deflate(int length, int flush) {
+        if (length == output.length) {
+            output = Arrays.copyOf(output, output.length * 2);
+        }
+        return length + deflater.deflate(output, length, output.length - length, flush);
+    }
+
+    // Free the zlib state once the connection is closed.
+    public synchronized void end() {
+        ended = true;
+        if (deflater != null) {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package server;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Usernames currently in use, keyed case-insensitively.
+ * reserve() checks and claims a name in one atomic step, so two clients logging in with
+ * the same name at the same moment can never both succeed.
+ */
+public class UsernameRegistry {
+    private final ConcurrentHashMap<String, ClientHandler> owners = new ConcurrentHashMap<>();
+
+    // Claim the name for this client. Returns false if someone else already has it.
+    public boolean reserve(String username, ClientHandler client) {
+        return owners.putIfAbsent(key(username), client) == null;
+    }
+
+    // Free the name, but only if this client is the one holding it.
+    public void release(String username, ClientHandler client) {
+        owners.remove(key(username), client);
+    }
+
+    // The client holding the name, or null.
+    public ClientHandler get(String username) {
+        return owners.get(key(username));
+    }
+
+    public boolean contains(String username) {
+        return owners.containsKey(key(username));
+    }
+
+    public int size() {
+        return owners.size();
+    }
+
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+}
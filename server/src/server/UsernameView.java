@@ -0,0 +1,176 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/*
+ * The usernames of a group's members (in a cluster, also the ones on other nodes), in join order.
+ * Group keeps it up to date on every join and leave, so USERS and JOIN no longer collect the
+ * names from the member list on each request.
+ *
+ * The comma-separated list is rendered to UTF-8 once and cached until the next change; a USERS
+ * reply is then one copy of those bytes around the caller's own name, which replies leave out.
+ */
+public class UsernameView {
+    private final LinkedHashSet<String> names = new LinkedHashSet<>(); // Guarded by this
+    private volatile Rendered rendered = null; // Null until needed after a change
+
+    // The list as sent: "a,b,c", with where each name starts.
+    private static final class Rendered {
+        final String[] names;
+        final byte[] bytes;
+        final int[] starts; // Name i is bytes[starts[i], starts[i + 1] - 1); starts[n] = bytes.length + 1
+        private volatile boolean looked = false; // Set by the first indexOf()
+        private volatile int[] byName = null; // Indexes into names, sorted by name. Built on the second lookup.
+
+        Rendered(String[] names) {
+            this.names = names;
+            this.starts = new int[names.length + 1];
+            byte[][] encoded = new byte[names.length][];
+            int length = 0;
+            for (int i = 0; i < names.length; i++) {
+                encoded[i] = names[i].getBytes(StandardCharsets.UTF_8);
+                starts[i] = length;
+                length += encoded[i].length + 1;
+            }
+            starts[names.length] = length;
+            this.bytes = new byte[Math.max(0, length - 1)];
+            for (int i = 0; i < names.length; i++) {
+                System.arraycopy(encoded[i], 0, bytes, starts[i], encoded[i].length);
+                if (i + 1 < names.length) {
+                    bytes[starts[i + 1] - 1] = ',';
+                }
+            }
+        }
+
+        // Where username is in names (join order), or -1. A list that is looked up more than once
+        // (USERS pages of a big group) is sorted once and binary searched after that. The first
+        // lookup just scans it: after a JOIN the list is usually rendered for that one reply, and
+        // sorting it every time would cost more than the scan.
+        int indexOf(String username) {
+            if (username == null) {
+                return -1;
+            }
+            if (!looked) {
+                looked = true;
+                for (int i = 0; i < names.length; i++) {
+                    if (names[i].equals(username)) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+            int[] sorted = byName;
+            if (sorted == null) {
+                sorted = sortByName(names);
+                byName = sorted; // Two threads may both sort; either result is the same
+            }
+            int low = 0;
+            int high = sorted.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int order = names[sorted[mid]].compareTo(username);
+                if (order < 0) {
+                    low = mid + 1;
+                } else if (order > 0) {
+                    high = mid - 1;
+                } else {
+                    return sorted[mid];
+                }
+            }
+            return -1;
+        }
+
+        private static int[] sortByName(String[] names) {
+            Integer[] order = new Integer[names.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> names[a].compareTo(names[b]));
+            int[] sorted = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                sorted[i] = order[i];
+            }
+            return sorted;
+        }
+
+        // "<prefix> <names from first to end - 1>" without the name at self, or just the prefix
+        // when no other name is in that range.
+        ByteBuffer line(String prefix, int first, int end, int self) {
+            int count = end - first;
+            int from = starts[first];
+            int to = starts[end] - 1;
+            int cutStart = from;
+            int cutEnd = from;
+            if (self >= first && self < end) {
+                count--;
+                // Drop the name with the comma after it, or before it if it is the last one.
+                cutStart = self + 1 == end ? starts[self] - 1 : starts[self];
+                cutEnd = self + 1 == end ? to : starts[self + 1];
+            }
+            if (count <= 0) {
+                return OutboundQueue.encode(prefix);
+            }
+            return OutboundQueue.encode(prefix + " ", bytes, from, to, cutStart, cutEnd);
+        }
+    }
+
+    public synchronized void add(String username) {
+        if (names.add(username)) {
+            rendered = null;
+        }
+    }
+
+    public synchronized void remove(String username) {
+        if (names.remove(username)) {
+            rendered = null;
+        }
+    }
+
+    public synchronized List<String> list() {
+        return new ArrayList<>(names);
+    }
+
+    public synchronized int size() {
+        return names.size();
+    }
+
+    private Rendered rendered() {
+        Rendered current = rendered;
+        if (current == null) {
+            synchronized (this) {
+                current = rendered;
+                if (current == null) {
+                    current = new Rendered(names.toArray(new String[0]));
+                    rendered = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    // "<prefix> a,b,c" with every name but self, or just the prefix if self is alone.
+    public ByteBuffer usersLine(String prefix, String self) {
+        Rendered current = rendered();
+        return current.line(prefix, 0, current.names.length, current.indexOf(self));
+    }
+
+    // One page of the same list (without self): "<prefix> <offset> <total> a,b,c".
+    // Offsets count from the oldest member, so a join or leave in between can shift pages.
+    public ByteBuffer usersPage(String prefix, String self, int offset, int limit) {
+        Rendered current = rendered();
+        int n = current.names.length;
+        int selfIndex = current.indexOf(self);
+        int total = selfIndex >= 0 ? n - 1 : n;
+        int first = Math.min(n, selfIndex >= 0 && selfIndex <= offset ? offset + 1 : offset);
+        int end = (int) Math.min(n, (long) first + limit);
+        if (selfIndex >= first && selfIndex < end && end < n) {
+            end++;
+        }
+        return current.line(prefix + " " + offset + " " + total, first, end, selfIndex);
+    }
+}